@@ -1,37 +1,88 @@
 package superchat;
 
+import superchat.data.Attachment;
+import superchat.data.Message;
+import superchat.trace.RenderedEvent;
+
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.ElementIterator;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
 import java.awt.*;
 import java.awt.event.ActionListener;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 
 /**
- * The GUI bound with a "Client".
+ * The GUI bound with a "Client" (as its listener).
  */
-public class Application
+public class Application implements ChatListener
 {
     public static void main(String[] args)
     {
-        // Create the client.
-        Client client = new Client(parseArgs(args));
-        // Start the app with this client.
+        if (GraphicsEnvironment.isHeadless())
+        {
+            System.err.println("Error: no display (you may need to set the DISPLAY variable).");
+            System.exit(-1);
+        }
+
+        String host = parseArgs(args);
+        // Create the client (connecting to the broker) in background, while
+        // the window is shown.
+        CompletableFuture<Client> client = CompletableFuture.supplyAsync(() ->
+                {
+                    try
+                    {
+                        return new Client(host);
+                    }
+                    catch (IOException | TimeoutException e)
+                    {
+                        throw new CompletionException(e);
+                    }
+                }
+        );
+        // Start the app with this client (once created).
         SwingUtilities.invokeLater(() -> new Application(client));
         // Handle the ctrl-C exits (alt-F4 done with Swing).
         Runtime.getRuntime().addShutdownHook(new Thread(
                 () ->
                 {
-                    if (client.isConnected())
+                    if (! client.isDone() || client.isCompletedExceptionally())
                     {
-                        client.disconnect();
+                        return;
                     }
 
-                    client.closeRabbitMQ();
+                    Client created = client.join();
+
+                    if (created.isConnected())
+                    {
+                        created.disconnect();
+                    }
+
+                    created.closeRabbitMQ();
                 }
             )
         );
@@ -50,6 +101,19 @@ public class Application
 
     // Constants.
     private final String FONT = "";
+    // Exit once the window is shown and the broker connection attempted
+    // (e.g. for the class data sharing training run), printing the time
+    // to the first frame.
+    private final static boolean EXIT_AFTER_STARTUP =
+            Boolean.getBoolean("superchat.startup.exit");
+    // Prefix of the direct messages inputs ("/msg <name> <message>").
+    private final static String DIRECT_COMMAND = "/msg ";
+    // Delay between two updates of the typing and read status (in ms),
+    // and time after which a user is no longer typing (in ms).
+    private final static int STATUS_PERIOD = 1000;
+    private final static int TYPING_TIMEOUT = 3000;
+    // Number of history messages formatted between two progress updates.
+    private final static int HISTORY_PROGRESS_STEP = 500;
 
     public final static SimpleAttributeSet ATTR_PLAIN 
         = new SimpleAttributeSet(); 
@@ -63,30 +127,89 @@ public class Application
         = new SimpleAttributeSet(); 
 
 
-    // To manage the client session and messages. 
-    private final Client mClient;
-    // App icon.
+    // To manage the client session and messages (null until created).
+    private Client mClient;
+    // App icon (loaded in background), and its label.
     private BufferedImage mIcon;
+    private JLabel mIconLabel;
+    // Fonts by style and size (created once, on first use).
+    private final Map<String, Font> mFonts = new HashMap<>();
+    // Enabled once the client is created.
+    private JButton mConnectButton;
     // The GUI window.
     private JFrame mFrame;
     // The chat messages.
     private JTextPane mChatArea;
     // The connected user names.
     private DefaultListModel<String> mUserList;
+    // To display the messages skipped when the chat was too slow.
+    private JButton mLoadMoreButton;
+    // The typing and read status of the other users.
+    private JLabel mStatusLabel;
+    // The users typing (with the last time they were, in ms), and the
+    // read positions of the users (only used in the Swing thread).
+    private final Map<String, Long> mTypingUsers = new HashMap<>();
+    private final Map<String, Long> mReadSeqs = new HashMap<>();
+    // History position of the last message displayed.
+    private long mLastSeq;
+    // The chat additions made while a history is formatted in background
+    // (done in order once it is displayed), or null if none is.
+    private List<Runnable> mPendingChat;
+    // The progress of the history formatting (null if none).
+    private String mHistoryStatus;
 
-    public Application(Client client)
+    /**
+     * Show the window at once, and bind it with "client" once created.
+     */
+    public Application(CompletableFuture<Client> client)
     {
         // Load text styles for the chat.
         loadTextStyles();
-        // Load the app icon.
-        loadAssets();
         // Set pop up dialogs style.
         setDialogs();
         // Load the window.
         createFrame();
+        // Load the app icon (not needed for the first frame).
+        loadAssets();
         // Load the client.
-        mClient = client;
-        mClient.bindWithGUI(this);
+        client.whenComplete((created, error) ->
+                SwingUtilities.invokeLater(() -> onClient(created, error)));
+        // Refresh the status, and send the read position when watched.
+        new Timer(STATUS_PERIOD, e ->
+                {
+                    updateStatus();
+
+                    if (mFrame.isFocused() && mClient != null)
+                    {
+                        mClient.markRead();
+                    }
+                }
+        ).start();
+    }
+
+    /**
+     * Bind the window with the "client" created, or show the "error" if
+     * it couldn't be.
+     */
+    private void onClient(Client client, Throwable error)
+    {
+        if (error != null)
+        {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            System.err.println("Error: " + cause);
+            addToChat("[Server]: Cannot reach the server (" + cause + ").", ATTR_ERROR);
+        }
+        else
+        {
+            mClient = client;
+            mClient.setListener(this);
+            mConnectButton.setEnabled(true);
+        }
+
+        if (EXIT_AFTER_STARTUP)
+        {
+            System.exit(0);
+        }
     }
 
     private void loadTextStyles()
@@ -108,22 +231,37 @@ public class Application
 
     private void loadAssets()
     {
-        try
-        {
-            // Read from jar.
-            mIcon = ImageIO.read(getClass().getResource("/launcher.png"));
-        }
-        catch (Exception e) 
+        new SwingWorker<BufferedImage, Void>()
         {
-            e.printStackTrace();
-        }
+            @Override
+            protected BufferedImage doInBackground() throws IOException
+            {
+                // Read from jar.
+                return ImageIO.read(getClass().getResource("/launcher.png"));
+            }
+
+            @Override
+            protected void done()
+            {
+                try
+                {
+                    mIcon = get();
+                    mFrame.setIconImage(mIcon);
+                    mIconLabel.setIcon(convertIconWindows());
+                }
+                catch (InterruptedException | ExecutionException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }.execute();
     }
 
     private void setDialogs()
     {
-        UIManager.put("OptionPane.messageFont", new Font(FONT, Font.BOLD, (int) convertFontSizeForWindows(30D)));
-        UIManager.put("OptionPane.buttonFont", new Font(FONT, Font.PLAIN, (int) convertFontSizeForWindows(25D)));
-        UIManager.put("TextField.font", new Font(FONT, Font.PLAIN, (int) convertFontSizeForWindows(25D)));
+        UIManager.put("OptionPane.messageFont", getFont(Font.BOLD, 30D));
+        UIManager.put("OptionPane.buttonFont", getFont(Font.PLAIN, 25D));
+        UIManager.put("TextField.font", getFont(Font.PLAIN, 25D));
     }
 
     private void createFrame()
@@ -142,7 +280,7 @@ public class Application
                     @Override
                     public void windowClosing(java.awt.event.WindowEvent windowEvent) 
                     {
-                        if (mClient.isConnected())
+                        if (isConnected())
                         {
                             mClient.disconnect();
                         }
@@ -151,8 +289,6 @@ public class Application
                     }
                 }
         );
-        // App icon.
-        mFrame.setIconImage(mIcon);
         // Show on top.
         mFrame.setAlwaysOnTop(true);
         // Auto-exit when closing app.
@@ -165,6 +301,14 @@ public class Application
         mFrame.pack();
         // Show it.
         mFrame.setVisible(true);
+
+        if (EXIT_AFTER_STARTUP)
+        {
+            // Once painted.
+            SwingUtilities.invokeLater(() -> System.out.println("Startup: first frame in "
+                    + (System.currentTimeMillis()
+                    - ManagementFactory.getRuntimeMXBean().getStartTime()) + " ms."));
+        }
     }
 
     private JPanel getLeftPanel()
@@ -232,10 +376,12 @@ public class Application
         // Message list.
         mChatArea = new JTextPane();
         mChatArea.setMargin(new Insets(20, 20, 20, 20));
-        mChatArea.setFont(new Font(FONT, Font.PLAIN, (int) convertFontSizeForWindows(25D)));
+        mChatArea.setFont(getFont(Font.PLAIN, 25D));
         mChatArea.setEditable(false);
         addToChat("Welcome on super-chat v2.\n" +
-                "You can log in using the button at the bottom left.\n\n",
+                "You can log in using the button at the bottom left.\n" +
+                "Type \"" + DIRECT_COMMAND + "<name> <message>\" to send a direct message, " +
+                "and double-click on a user to see your conversation.\n\n",
                 ATTR_ITALIC); 
 
         JScrollPane scrollPane = new JScrollPane(mChatArea);
@@ -255,12 +401,29 @@ public class Application
         // User input.
         JTextField textField = new JTextField();
         textField.setMargin(new Insets(20, 20, 20, 20));
-        textField.setFont(new Font(FONT, Font.PLAIN, (int) convertFontSizeForWindows(25D)));
+        textField.setFont(getFont(Font.PLAIN, 25D));
         textField.addActionListener(onSendInput(textField));
+        textField.addKeyListener(new KeyAdapter()
+                {
+                    @Override
+                    public void keyTyped(KeyEvent e)
+                    {
+                        // Coalesced by the client.
+                        if (mClient != null)
+                        {
+                            mClient.sendTyping();
+                        }
+                    }
+                }
+        );
         // Send button.
         JButton button = new JButton("SEND");
-        button.setFont(new Font(FONT, Font.BOLD, (int) convertFontSizeForWindows(25D)));
+        button.setFont(getFont(Font.BOLD, 25D));
         button.addActionListener(onSendInput(textField));
+        // Attach button.
+        JButton fileButton = new JButton("FILE");
+        fileButton.setFont(getFont(Font.BOLD, 25D));
+        fileButton.addActionListener(onSendFile());
 
         // User input
         GridBagConstraints constraints1 = new GridBagConstraints();
@@ -276,11 +439,30 @@ public class Application
         constraints2.gridx = 1;
         constraints2.gridy = 0;
         constraints2.fill = GridBagConstraints.HORIZONTAL;
+        // Attach button.
+        GridBagConstraints constraints4 = new GridBagConstraints();
+        constraints4.weightx = 0.1;
+        constraints4.weighty = 0;
+        constraints4.gridx = 2;
+        constraints4.gridy = 0;
+        constraints4.fill = GridBagConstraints.HORIZONTAL;
+        // Status (typing and read).
+        mStatusLabel = new JLabel(" ");
+        mStatusLabel.setFont(getFont(Font.ITALIC, 20D));
+        GridBagConstraints constraints3 = new GridBagConstraints();
+        constraints3.weightx = 1;
+        constraints3.weighty = 0;
+        constraints3.gridx = 0;
+        constraints3.gridy = 1;
+        constraints3.gridwidth = 3;
+        constraints3.fill = GridBagConstraints.HORIZONTAL;
 
         JPanel panel = new JPanel(new GridBagLayout());
         panel.setBorder(new EmptyBorder(40, 20, 40, 40));
         panel.add(textField, constraints1);
         panel.add(button, constraints2);
+        panel.add(fileButton, constraints4);
+        panel.add(mStatusLabel, constraints3);
 
         return panel;
     }
@@ -289,7 +471,7 @@ public class Application
     {
         return e ->  
         {
-            if (! mClient.isConnected())
+            if (! isConnected())
             {
                 addToChat("[Server]: Please log in to " +
                        "send messages.", ATTR_SERVER);  
@@ -301,10 +483,24 @@ public class Application
 
             if (input != null && ! input.isEmpty())
             {
-                if (! mClient.isConnected())
+                if (! isConnected())
                 {
                     mClient.connect(input);
                 }
+                else if (input.startsWith(DIRECT_COMMAND))
+                {
+                    // "/msg <name> <message>".
+                    String[] parts = input.substring(DIRECT_COMMAND.length()).split(" ", 2);
+
+                    if (parts.length < 2 || parts[0].isEmpty())
+                    {
+                        addToChat("[Server]: Usage: " + DIRECT_COMMAND
+                                + "<name> <message>", ATTR_ERROR);
+                        return;
+                    }
+
+                    mClient.sendDirectMessage(parts[0], parts[1]);
+                }
                 else
                 {
                     mClient.sendMessage(input);
@@ -315,6 +511,27 @@ public class Application
         };
     }
 
+    private ActionListener onSendFile()
+    {
+        return e ->
+        {
+            if (! isConnected())
+            {
+                addToChat("[Server]: Please log in to " +
+                        "send files.", ATTR_SERVER);
+                return;
+            }
+
+            JFileChooser chooser = new JFileChooser();
+
+            if (chooser.showOpenDialog(mFrame) == JFileChooser.APPROVE_OPTION)
+            {
+                // Sent in background.
+                mClient.sendAttachment(chooser.getSelectedFile().toPath(), null);
+            }
+        };
+    }
+
     /**
      * Return the panel which contains the app icon and title. 
      */
@@ -323,18 +540,18 @@ public class Application
         // App title.
         String APP_NAME = "Super-chat v2";
         JLabel label1 = new JLabel(APP_NAME, SwingConstants.CENTER);
-        label1.setFont(new Font(FONT, Font.BOLD, (int) convertFontSizeForWindows(60D)));
+        label1.setFont(getFont(Font.BOLD, 60D));
         label1.setForeground(new Color(0x2484c2));
         JPanel panel_ = new JPanel(); // To force margins...
         panel_.setBorder(new EmptyBorder(40, 40, 80, 40));
         panel_.add(label1);
-        // App icon
-        JLabel label2 = new JLabel(convertIconWindows());
+        // App icon (set once loaded).
+        mIconLabel = new JLabel();
 
         JPanel panel = new JPanel(new BorderLayout());
         panel.setBorder(new EmptyBorder(40, 40, 40, 20));
         panel.add(panel_, BorderLayout.NORTH);
-        panel.add(label2, BorderLayout.CENTER);
+        panel.add(mIconLabel, BorderLayout.CENTER);
 
         return panel;
     }
@@ -346,7 +563,7 @@ public class Application
     {
         // Title.
         JLabel label = new JLabel("Current Users", JLabel.CENTER);
-        label.setFont(new Font(FONT, Font.BOLD, (int) convertFontSizeForWindows(30D)));
+        label.setFont(getFont(Font.BOLD, 30D));
         JPanel panel_ = new JPanel(); // To force margins...
         panel_.setBorder(new EmptyBorder(0, 0, 20, 0));
         panel_.add(label);
@@ -354,8 +571,23 @@ public class Application
         mUserList = new DefaultListModel<>();
         JList<String> list = new JList<>(mUserList);
         list.setBorder(new EmptyBorder(40, 40, 40, 20));
-        list.setFont(new Font(FONT, Font.PLAIN, (int) convertFontSizeForWindows(25D)));
+        list.setFont(getFont(Font.PLAIN, 25D));
         list.setVisibleRowCount(8);
+        // Show the conversation with a user on double-click.
+        list.addMouseListener(new MouseAdapter()
+                {
+                    @Override
+                    public void mouseClicked(MouseEvent e)
+                    {
+                        String name = list.getSelectedValue();
+
+                        if (e.getClickCount() == 2 && name != null && isConnected())
+                        {
+                            runInBackground(() -> mClient.loadConversation(name));
+                        }
+                    }
+                }
+        );
 
         JScrollPane scrollPane = new JScrollPane(list);
 
@@ -375,15 +607,22 @@ public class Application
     {
         JButton button1 = new JButton("CONNECT");
         JButton button2 = new JButton("DISCONNECT");
+        mLoadMoreButton = new JButton("LOAD MORE");
 
         // Connect button.
-        button1.setFont(new Font(FONT, Font.BOLD, (int) convertFontSizeForWindows(25D)));
+        button1.setFont(getFont(Font.BOLD, 25D));
         button1.addActionListener(onConnection(button1, button2));
-        button1.setEnabled(true);
+        // Once connected to the broker.
+        button1.setEnabled(false);
+        mConnectButton = button1;
         // Disconnect button.
-        button2.setFont(new Font(FONT, Font.BOLD, (int) convertFontSizeForWindows(25D)));
+        button2.setFont(getFont(Font.BOLD, 25D));
         button2.addActionListener(onDisconnection(button1, button2));
         button2.setEnabled(false);
+        // Load more button.
+        mLoadMoreButton.setFont(getFont(Font.BOLD, 25D));
+        mLoadMoreButton.addActionListener(onLoadMore());
+        mLoadMoreButton.setEnabled(false);
         // Connect button.
         GridBagConstraints constraints1 = new GridBagConstraints();
         constraints1.weightx = 0.5;
@@ -398,11 +637,20 @@ public class Application
         constraints2.gridx = 1;
         constraints2.gridy = 0;
         constraints2.fill = GridBagConstraints.HORIZONTAL;
+        // Load more button.
+        GridBagConstraints constraints3 = new GridBagConstraints();
+        constraints3.weightx = 1;
+        constraints3.weighty = 0;
+        constraints3.gridx = 0;
+        constraints3.gridy = 1;
+        constraints3.gridwidth = 2;
+        constraints3.fill = GridBagConstraints.HORIZONTAL;
 
         JPanel panel = new JPanel(new GridBagLayout());
         panel.setBorder(new EmptyBorder(20, 40, 40, 20));
         panel.add(button1, constraints1); 
         panel.add(button2, constraints2); 
+        panel.add(mLoadMoreButton, constraints3);
 
         return panel;
     }
@@ -459,10 +707,361 @@ public class Application
         };
     }
 
+    private ActionListener onLoadMore()
+    {
+        return e ->
+        {
+            mLoadMoreButton.setEnabled(false);
+            runInBackground(mClient::loadSkippedMessages);
+        };
+    }
+
+    /**
+     * Print the message (waiting for it to be displayed, so that the
+     * client doesn't receive faster than the chat can display).
+     */
+    @Override
+    public void onMessage(Message message)
+    {
+        runOnGUIAndWait(() ->
+                {
+                    RenderedEvent event = new RenderedEvent();
+                    event.begin();
+                    addMessageToChat(message);
+                    event.traceId = message.getId();
+                    event.commit();
+                    // Sent: no longer typing.
+                    mLastSeq = Math.max(mLastSeq, message.getSeq());
+                    mTypingUsers.remove(message.getName());
+                }
+        );
+    }
+
+    /**
+     * Format the history messages in background, in a detached document
+     * (after a copy of the chat) swapped in the chat once complete, so that
+     * a long history doesn't freeze the GUI (the chat additions meanwhile
+     * being done after).
+     */
+    @Override
+    public void onHistory(List<Message> messages)
+    {
+        SwingUtilities.invokeLater(() -> showHistory(messages));
+    }
+
+    private void showHistory(List<Message> messages)
+    {
+        if (messages.isEmpty())
+        {
+            return;
+        }
+
+        if (mPendingChat != null)
+        {
+            // Another one is being formatted: shown after it.
+            mPendingChat.add(() -> showHistory(messages));
+            return;
+        }
+
+        mPendingChat = new ArrayList<>();
+        // Not changed until swapped (the additions waiting meanwhile).
+        StyledDocument chat = (StyledDocument) mChatArea.getDocument();
+
+        new SwingWorker<StyledDocument, Integer>()
+        {
+            // The attachments by offset in the document (their buttons
+            // being Swing components, they are added in the Swing thread).
+            private final TreeMap<Integer, Attachment> mAttachments = new TreeMap<>();
+
+            @Override
+            protected StyledDocument doInBackground()
+            {
+                // Not displayed yet: can be written from this thread.
+                StyledDocument doc = new DefaultStyledDocument();
+                // What is displayed before, kept.
+                copyDocument(chat, doc);
+
+                for (int i = 0; i < messages.size(); i++)
+                {
+                    Message message = messages.get(i);
+                    insertMessage(doc, message);
+
+                    if (message.getAttachment() != null)
+                    {
+                        mAttachments.put(doc.getLength(), message.getAttachment());
+                    }
+
+                    if (i % HISTORY_PROGRESS_STEP == 0)
+                    {
+                        publish(i);
+                    }
+                }
+
+                return doc;
+            }
+
+            @Override
+            protected void process(List<Integer> counts)
+            {
+                mHistoryStatus = "Loading the history (" + counts.get(counts.size() - 1)
+                        + "/" + messages.size() + " messages)... ";
+                updateStatus();
+            }
+
+            @Override
+            protected void done()
+            {
+                StyledDocument history = null;
+
+                try
+                {
+                    history = get();
+                    // From the last one, to keep the offsets of the others.
+                    StyledDocument doc = history;
+                    mAttachments.descendingMap().forEach(
+                            (offset, attachment) -> insertAttachment(doc, offset, attachment));
+                    // Swap in one go.
+                    mChatArea.setDocument(history);
+                    mChatArea.setCaretPosition(history.getLength());
+                }
+                catch (InterruptedException | ExecutionException e)
+                {
+                    e.printStackTrace();
+                }
+
+                List<Runnable> pending = mPendingChat;
+                mPendingChat = null;
+
+                if (history == null)
+                {
+                    // Fall back on displaying them one by one.
+                    messages.forEach(Application.this::addMessageToChat);
+                }
+
+                messages.forEach(message -> mLastSeq = Math.max(mLastSeq, message.getSeq()));
+                mHistoryStatus = null;
+                updateStatus();
+                pending.forEach(Runnable::run);
+            }
+        }.execute();
+    }
+
+    /**
+     * Print the direct message (apart from the others).
+     */
+    @Override
+    public void onDirectMessage(Message message)
+    {
+        SwingUtilities.invokeLater(() ->
+                {
+                    addToChat("(" + message.getTime() + ") ", ATTR_BOLD);
+                    addToChat("[" + message.getName() + " > " + message.getTo() + "]: ",
+                            ATTR_ITALIC);
+                    addToChat(message.getContent(), ATTR_PLAIN);
+                    addAttachmentToChat(message.getAttachment());
+                }
+        );
+    }
+
+    @Override
+    public void onPresence(String name, boolean isConnected)
+    {
+        SwingUtilities.invokeLater(() ->
+                {
+                    if (isConnected)
+                    {
+                        addToChat(name + " is connected.", ATTR_SERVER);
+                        addToUsersList(name);
+                    }
+                    else
+                    {
+                        addToChat(name + " is disconnected.", ATTR_SERVER);
+                        removeFromUserList(name);
+                        mTypingUsers.remove(name);
+                        mReadSeqs.remove(name);
+                    }
+                }
+        );
+    }
+
+    @Override
+    public void onTyping(String name)
+    {
+        SwingUtilities.invokeLater(() ->
+                {
+                    mTypingUsers.put(name, System.currentTimeMillis());
+                    updateStatus();
+                }
+        );
+    }
+
+    @Override
+    public void onRead(String name, long seq)
+    {
+        SwingUtilities.invokeLater(() ->
+                {
+                    mReadSeqs.merge(name, seq, Math::max);
+                    updateStatus();
+                }
+        );
+    }
+
+    /**
+     * Display who is typing, and who has read the last message.
+     */
+    private void updateStatus()
+    {
+        long now = System.currentTimeMillis();
+        mTypingUsers.values().removeIf(time -> now - time > TYPING_TIMEOUT);
+
+        List<String> readers = new ArrayList<>();
+        mReadSeqs.forEach((name, seq) ->
+                {
+                    if (mLastSeq > 0 && seq >= mLastSeq)
+                    {
+                        readers.add(name);
+                    }
+                }
+        );
+
+        String status = mHistoryStatus != null ? mHistoryStatus : "";
+
+        if (! mTypingUsers.isEmpty())
+        {
+            status += String.join(", ", mTypingUsers.keySet())
+                    + (mTypingUsers.size() == 1 ? " is typing... " : " are typing... ");
+        }
+
+        if (! readers.isEmpty())
+        {
+            status += "Seen by " + String.join(", ", readers) + ".";
+        }
+        // Not empty, to keep the label height.
+        mStatusLabel.setText(status.isEmpty() ? " " : status);
+    }
+
+    @Override
+    public void onError(String error)
+    {
+        SwingUtilities.invokeLater(() -> addToChat("[Server]: " + error, ATTR_ERROR));
+    }
+
+    @Override
+    public void onNotice(String notice)
+    {
+        SwingUtilities.invokeLater(() -> addToChat("[Server]: " + notice, ATTR_SERVER));
+    }
+
+    @Override
+    public void onUsers(List<String> names)
+    {
+        SwingUtilities.invokeLater(() ->
+                {
+                    clearUsersList();
+                    names.forEach(this::addToUsersList);
+                }
+        );
+    }
+
+    /**
+     * Inform the user that "count" messages were skipped (since the last
+     * load), and let her/him load them.
+     */
+    @Override
+    public void onMessagesSkipped(int count)
+    {
+        SwingUtilities.invokeLater(() ->
+                {
+                    addToChat("[Server]: " + count + " messages skipped to keep up, " +
+                            "click on LOAD MORE to see them.", ATTR_SERVER);
+                    mLoadMoreButton.setEnabled(true);
+                }
+        );
+    }
+
+    /**
+     * Run "task" out of the Swing thread (e.g. a request to the server), so
+     * that the GUI doesn't freeze meanwhile.
+     */
+    private static void runInBackground(Runnable task)
+    {
+        new SwingWorker<Void, Void>()
+        {
+            @Override
+            protected Void doInBackground()
+            {
+                task.run();
+                return null;
+            }
+        }.execute();
+    }
+
+    /**
+     * Run "action" in the Swing thread, and wait for it.
+     */
+    private void runOnGUIAndWait(Runnable action)
+    {
+        if (SwingUtilities.isEventDispatchThread())
+        {
+            action.run();
+            return;
+        }
+
+        try
+        {
+            SwingUtilities.invokeAndWait(action);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (InvocationTargetException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
     public void addToChat(String message, SimpleAttributeSet attributes) 
     {
+        if (mPendingChat != null)
+        {
+            // Displayed after the history being formatted.
+            mPendingChat.add(() -> addToChat(message, attributes));
+            return;
+        }
+
+        Document doc = mChatArea.getDocument();
+        insertText(doc, message, attributes);
+        mChatArea.setCaretPosition(doc.getLength());
+    }
+
+    private void addMessageToChat(Message message)
+    {
+        if (mPendingChat != null)
+        {
+            // Displayed after the history being formatted.
+            mPendingChat.add(() -> addMessageToChat(message));
+            return;
+        }
+
         Document doc = mChatArea.getDocument();
+        insertMessage(doc, message);
+        addAttachmentToChat(message.getAttachment());
+        mChatArea.setCaretPosition(doc.getLength());
+    }
+
+    /**
+     * Append "message" to "doc" as printed in the chat (its attachment apart).
+     */
+    private static void insertMessage(Document doc, Message message)
+    {
+        insertText(doc, "(" + message.getTime() + ") ", ATTR_BOLD);
+        insertText(doc, message.getName() + ": ", ATTR_BOLD);
+        insertText(doc, message.getContent(), ATTR_PLAIN);
+    }
 
+    private static void insertText(Document doc, String message, SimpleAttributeSet attributes)
+    {
         if (attributes == ATTR_ERROR || attributes == ATTR_SERVER)
         {
             message = "\n" + message + "\n\n";
@@ -479,8 +1078,95 @@ public class Application
         catch (Exception ignored)
         {
         }
+    }
 
-        mChatArea.setCaretPosition(doc.getLength());
+    /**
+     * Append the content of "from" (with its styles and components) to "to".
+     */
+    private static void copyDocument(StyledDocument from, StyledDocument to)
+    {
+        ElementIterator iterator = new ElementIterator(from);
+        int offset = to.getLength();
+
+        for (Element element = iterator.first(); element != null; element = iterator.next())
+        {
+            // Without the implicit last line break.
+            int start = element.getStartOffset();
+            int end = Math.min(element.getEndOffset(), from.getLength());
+
+            if (! element.isLeaf() || end <= start)
+            {
+                continue;
+            }
+
+            try
+            {
+                to.insertString(offset, from.getText(start, end - start),
+                        element.getAttributes().copyAttributes());
+            }
+            catch (BadLocationException ignored)
+            {
+            }
+
+            offset += end - start;
+        }
+    }
+
+    /**
+     * Add a button to download the "attachment" (if not null) to the chat,
+     * its content being retrieved only on click.
+     */
+    private void addAttachmentToChat(Attachment attachment)
+    {
+        if (attachment == null)
+        {
+            return;
+        }
+
+        if (mPendingChat != null)
+        {
+            // Displayed after the history being formatted.
+            mPendingChat.add(() -> addAttachmentToChat(attachment));
+            return;
+        }
+
+        Document doc = mChatArea.getDocument();
+        insertAttachment(doc, doc.getLength(), attachment);
+    }
+
+    /**
+     * Insert a button to download "attachment" at "offset" in "doc".
+     */
+    private void insertAttachment(Document doc, int offset, Attachment attachment)
+    {
+        JButton button = new JButton("DOWNLOAD " + attachment.getFileName()
+                + " (" + (attachment.getSize() + 1023) / 1024 + " KB)");
+        button.setFont(getFont(Font.PLAIN, 20D));
+        button.addActionListener(e ->
+                {
+                    JFileChooser chooser = new JFileChooser();
+                    chooser.setSelectedFile(new java.io.File(attachment.getFileName()));
+
+                    if (chooser.showSaveDialog(mFrame) == JFileChooser.APPROVE_OPTION)
+                    {
+                        // Retrieved in background.
+                        mClient.downloadAttachment(attachment,
+                                chooser.getSelectedFile().toPath());
+                    }
+                }
+        );
+
+        SimpleAttributeSet attributes = new SimpleAttributeSet();
+        StyleConstants.setComponent(attributes, button);
+
+        try
+        {
+            doc.insertString(offset, " ", attributes);
+            doc.insertString(offset + 1, "\n", ATTR_PLAIN);
+        }
+        catch (Exception ignored)
+        {
+        }
     }
 
     public void addToUsersList(String name)
@@ -501,6 +1187,20 @@ public class Application
         mUserList.clear();
     }
 
+    /**
+     * Return the font of "style" and "size" (converted for Windows).
+     */
+    private Font getFont(int style, double size)
+    {
+        return mFonts.computeIfAbsent(style + "/" + size,
+                key -> new Font(FONT, style, (int) convertFontSizeForWindows(size)));
+    }
+
+    private boolean isConnected()
+    {
+        return mClient != null && mClient.isConnected();
+    }
+
     public double convertFontSizeForWindows(double fontSize)
     {
         // Are we running within a Windows platform?
@@ -0,0 +1,84 @@
+package superchat;
+
+import superchat.data.Message;
+
+import java.util.List;
+
+
+/**
+ * Receive the events of a "Client" session (the GUI, or a bot without one).
+ * Called from the client threads: implementations must not block, except to
+ * slow down the message consumption.
+ */
+public interface ChatListener
+{
+    /**
+     * Called for each message received, or retrieved from the history.
+     */
+    void onMessage(Message message);
+
+    /**
+     * Called with a batch of messages retrieved from the history (on
+     * connection, or to fill a gap), oldest first.
+     */
+    default void onHistory(List<Message> messages)
+    {
+        messages.forEach(this::onMessage);
+    }
+
+    /**
+     * Called for each direct message to or from the user, received or
+     * retrieved from the conversation history.
+     */
+    default void onDirectMessage(Message message)
+    {
+    }
+
+    /**
+     * Called when the user "name" connects (or disconnects if not "isConnected").
+     */
+    void onPresence(String name, boolean isConnected);
+
+    /**
+     * Called with an error to report to the user.
+     */
+    void onError(String error);
+
+    /**
+     * Called with an information about the session.
+     */
+    default void onNotice(String notice)
+    {
+    }
+
+    /**
+     * Called with all the connected users (replacing the previous ones),
+     * on connection and disconnection.
+     */
+    default void onUsers(List<String> names)
+    {
+    }
+
+    /**
+     * Called when the user "name" is typing (at most once per second).
+     */
+    default void onTyping(String name)
+    {
+    }
+
+    /**
+     * Called when the user "name" has read the messages up to the
+     * history position "seq".
+     */
+    default void onRead(String name, long seq)
+    {
+    }
+
+    /**
+     * Called when "count" messages were skipped (since the last load) to
+     * keep up; they can be retrieved with "Client.loadSkippedMessages".
+     */
+    default void onMessagesSkipped(int count)
+    {
+    }
+}
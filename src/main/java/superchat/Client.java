@@ -2,21 +2,47 @@ package superchat;
 
 import com.rabbitmq.client.*;
 import org.apache.commons.lang3.SerializationUtils;
+import superchat.client.AttachmentTransfer;
+import superchat.client.ConnectionManager;
+import superchat.client.InboundQueue;
+import superchat.data.Attachment;
+import superchat.data.ConversationRequest;
+import superchat.data.HistoryRequest;
 import superchat.data.Message;
+import superchat.data.PresenceSummary;
+import superchat.data.Rejection;
+import superchat.data.Signal;
+import superchat.data.SyncRequest;
+import superchat.trace.ClientReceiveEvent;
+import superchat.trace.MessageTrace;
+import superchat.trace.PublishEvent;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 
 /**
  * Communicate with other clients by sending its messages to the
- * server which redirects them, and update the GUI.
+ * server which redirects them, and inform its listener (the GUI or a bot).
+ * Either owns its connection to the broker, or is a session of a shared
+ * connection manager (with its own channel).
  */
 public class Client
 {
@@ -25,61 +51,208 @@ public class Client
     // distribution (we don't want to include Server.java in the client.jar).
     private final static String QUEUE_CONNECTIONS =
             "rabbitmq://server/queue/connections_disconnections/";
-    private final static String EXCHANGE_MESSAGES =
-            "rabbitmq://server/exchange/messages/";
-    private final static String EXCHANGE_CONNECTIONS =
-            "rabbitmq://server/exchange/connections_disconnections/";
+    private final static String QUEUE_PRESENCE =
+            "rabbitmq://server/queue/presence/";
+    private final static String QUEUE_MESSAGES =
+            "rabbitmq://server/queue/messages/";
+    private final static String EXCHANGE_SIGNALS =
+            "rabbitmq://server/exchange/signals/";
+
+    // Number of presence shards (the same as Server.java, otherwise the
+    // requests queue is used when the shard one isn't consumed).
+    private final static int PRESENCE_SHARDS =
+            Math.max(1, Integer.getInteger("superchat.presence.shards", 1));
+
+    // Priorities of the requests (the same as Server.java).
+    private final static int PRIORITY_BULK = 0;
+    private final static int PRIORITY_CONTROL = 1;
+
+    // Number of messages in a publish of the server (batches).
+    private final static String HEADER_COUNT = "x-message-count";
+    // Number of tries to send a message.
+    private final static int SEND_ATTEMPTS = 2;
+    // Maximum time to wait for the resync after a recovery (in seconds).
+    private final static int SYNC_TIMEOUT = 10;
+    // Maximum time to wait for each reply of a request (in seconds).
+    private final static int REPLY_TIMEOUT = 10;
+    // Maximum time to wait for the broker to confirm a sent message (in ms).
+    private final static int CONFIRM_TIMEOUT = 5000;
+    // Number of direct messages loaded with a conversation.
+    private final static int CONVERSATION_COUNT = 100;
+    // Minimum time between two typing signals (in ns).
+    private final static long TYPING_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    // Maximum number of unacknowledged messages sent by the broker
+    // (and of messages waiting to be displayed).
+    private final static int PREFETCH =
+            Integer.getInteger("superchat.client.prefetch", 256);
 
     // To communicate.
-    private Connection mConnection;
+    private ConnectionManager mManager;
+    private final boolean mOwnsManager;
+    private ConnectionManager.Session mSession;
     private Channel mChannel;
+    // Publishes the messages one by one, in background (not to wait for the
+    // broker confirms on the GUI thread), in their sending order.
+    private final ExecutorService mPublisher = Executors.newSingleThreadExecutor(r ->
+            {
+                Thread thread = new Thread(r, "message-publisher");
+                thread.setDaemon(true);
+                return thread;
+            }
+    );
+    // Responses of the pending requests, by correlation id.
+    private final Map<String, BlockingQueue<Object>> mPendingRequests;
+    // Received messages waiting to be displayed.
+    private InboundQueue mInbound;
+    // Messages skipped because displayed too slowly: their number, the
+    // history position of the last message displayed before, and the
+    // positions of the ones displayed (or loaded) since (to find them back
+    // in the history).
+    private int mSkipped;
+    private long mSkippedAfterSeq;
+    private final Set<Long> mShownSinceSkip = new HashSet<>();
+    // History position of the last message displayed, and of the first one
+    // received since the last recovery (to display the missed ones once).
+    private long mLastSeq;
+    private long mResumedSeq = Long.MAX_VALUE;
+    // Last typing signal sent (ns), and last read position sent.
+    private long mTypingTime;
+    private long mReadSeq;
     // Current user state.
     private boolean mIsConnected;
     private String mName;
-    // To display messages and connected users.
-    private Application mApp;
-
-    public Client(String host)
+    // Where the connection/disconnection of the user are sent.
+    private String mPresenceQueue = QUEUE_CONNECTIONS;
+    // The connected users (guarded by itself), to correct them with the
+    // presence summaries.
+    private final Set<String> mUsers = new TreeSet<>();
+    // To display messages and connected users (none until set).
+    private volatile ChatListener mListener = new ChatListener()
     {
-        initCommunication(host);
-    }
-
-    private void initCommunication(String host)
-    {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost(host);
+        @Override
+        public void onMessage(Message message)
+        {
+        }
 
-        try
+        @Override
+        public void onPresence(String name, boolean isConnected)
         {
-            mConnection = factory.newConnection();
-            mChannel = mConnection.createChannel();
-            // Get a queue to receive the messages from the server.
-            String queueName1 = mChannel.queueDeclare().getQueue();
-            mChannel.queueBind(queueName1, EXCHANGE_MESSAGES, "");
-            mChannel.basicConsume(queueName1, true,
-                    this::onReceiveMessage,
-                    consumerTag -> { });
-            // Get a queue to receive the connections/disconnections from the server.
-            String queueName2 = mChannel.queueDeclare().getQueue();
-            mChannel.queueBind(queueName2, EXCHANGE_CONNECTIONS, "");
-            mChannel.basicConsume(queueName2, true,
-                    this::onReceiveConnection,
-                    consumerTag -> { });
         }
-        catch (TimeoutException | IOException e)
+
+        @Override
+        public void onError(String error)
         {
-            System.err.println("Error: " + e);
-            System.exit(-1);
         }
+    };
+
+    public Client(String host) throws IOException, TimeoutException
+    {
+        mManager = new ConnectionManager(host, PREFETCH);
+        mOwnsManager = true;
+        mPendingRequests = new ConcurrentHashMap<>();
+        initCommunication();
+    }
+
+    /**
+     * Create a session of "manager" (which is not closed with it).
+     */
+    public Client(ConnectionManager manager) throws IOException, TimeoutException
+    {
+        mManager = manager;
+        mOwnsManager = false;
+        mPendingRequests = new ConcurrentHashMap<>();
+        initCommunication();
+    }
+
+    /**
+     * Return the number of messages a connection manager of clients should
+     * let the broker send without acknowledgment.
+     */
+    public static int getPrefetch()
+    {
+        return PREFETCH;
+    }
+
+    private void initCommunication() throws IOException, TimeoutException
+    {
+        // Bound the messages received but not yet displayed.
+        mInbound = new InboundQueue(PREFETCH, new InboundQueue.Renderer()
+                {
+                    @Override
+                    public void render(Delivery delivery) throws Exception
+                    {
+                        onReceiveMessage(delivery);
+                    }
+
+                    @Override
+                    public int countOf(Delivery delivery)
+                    {
+                        return countMessagesOf(delivery);
+                    }
+
+                    @Override
+                    public void onSkipped(int count)
+                    {
+                        onSkipMessages(count);
+                    }
+                }
+        );
+        mInbound.start();
+        // Receive the messages (acknowledged once displayed), the
+        // connections/disconnections and the replies through the manager.
+        mSession = mManager.open(new ConnectionManager.SessionHandler()
+                {
+                    @Override
+                    public void onMessage(Delivery delivery, InboundQueue.Acknowledgment ack)
+                            throws IOException
+                    {
+                        mInbound.offer(delivery, ack);
+                    }
+
+                    @Override
+                    public void onPresence(Delivery delivery)
+                    {
+                        onReceiveConnection(delivery);
+                    }
+
+                    @Override
+                    public void onSignal(Delivery delivery)
+                    {
+                        onReceiveSignal(delivery);
+                    }
+
+                    @Override
+                    public void onDirect(Delivery delivery)
+                    {
+                        onReceiveDirect(delivery);
+                    }
+
+                    @Override
+                    public void onReply(Delivery delivery)
+                    {
+                        onReceiveReply(delivery);
+                    }
+
+                    @Override
+                    public void onRecovered(long millis)
+                    {
+                        onRecovery(millis);
+                    }
+                }
+        );
+        mChannel = mSession.getChannel();
+        // To know that the sent messages were stored by the broker.
+        mChannel.confirmSelect();
     }
 
     /**
-     * Bind this client with the current running GUI, to print the messages
-     * and connected users.
+     * Set the listener informed of the messages and connected users
+     * (e.g. the current running GUI).
      */
-    public void bindWithGUI(Application app)
+    public void setListener(ChatListener listener)
     {
-        mApp = app;
+        mListener = listener;
     }
 
     /**
@@ -87,58 +260,138 @@ public class Client
      */
     public boolean connect(String name)
     {
-        mApp.addToChat("[Server]: Initiating your connection...",
-                superchat.Application.ATTR_SERVER);
+        mListener.onNotice("Initiating your connection...");
+        // Whether the server accepted the pseudo (null until known).
+        Boolean isAccepted = null;
 
         try
         {
+            mPresenceQueue = presenceQueueOf(name);
             BlockingQueue<Object> response = connectRPC(name);
+            Object accepted = response.poll(REPLY_TIMEOUT, TimeUnit.SECONDS);
 
-            boolean isConnected = (boolean) response.take();
+            if (accepted == null)
+            {
+                // Not to keep the pseudo if accepted late.
+                releaseIfAccepted(response, name);
+                throw new TimeoutException("no reply from the server");
+            }
+
+            boolean isConnected = (boolean) accepted;
+            isAccepted = isConnected;
             @SuppressWarnings("unchecked")
-            ArrayList<Message> messageHistory = (ArrayList<Message>) response.take();
+            ArrayList<Message> messageHistory = (ArrayList<Message>) await(response);
             @SuppressWarnings("unchecked")
-            ArrayList<String> connectedClients = (ArrayList<String>) response.take();
-
-            System.out.println(connectedClients);
+            ArrayList<String> connectedClients = (ArrayList<String>) await(response);
 
             if (! isConnected)
             {
-                mApp.addToChat("[Server]: Error, this pseudo is not available.",
-                        superchat.Application.ATTR_ERROR);
+                mListener.onError("Error, this pseudo is not available.");
                 return false;
             }
             else
             {
-                // Successfully connected.
+                // Successfully connected: receive the direct messages.
+                mSession.subscribeDirect(name);
                 mName = name;
                 mIsConnected = true;
-                // Add the connected clients to the left list.
-                connectedClients.forEach(client -> mApp.addToUsersList(client));
-                // And add the message history.
-                messageHistory.forEach(
-                        message ->
-                        {
-                            mApp.addToChat("(" + message.getTime() + ") ", Application.ATTR_BOLD);
-                            mApp.addToChat(message.getName() + ": ", Application.ATTR_BOLD);
-                            mApp.addToChat(message.getContent(), Application.ATTR_PLAIN);
-                        }
-                );
+                // Give the connected clients.
+                setUsers(connectedClients);
+                mListener.onUsers(connectedClients);
+                // And the message history.
+                mListener.onHistory(messageHistory);
+
+                synchronized (this)
+                {
+                    messageHistory.forEach(message ->
+                            mLastSeq = Math.max(mLastSeq, message.getSeq()));
+                }
+            }
+        }
+        catch (TimeoutException e)
+        {
+            if (Boolean.TRUE.equals(isAccepted))
+            {
+                // Not to keep the pseudo (the user isn't connected).
+                releasePseudo(name);
             }
+
+            mListener.onError("Error, the server doesn't respond, try again later.");
+            return false;
         }
         catch (Exception e)
         {
-            mApp.addToChat("[Server]: Error with the server, try again or " +
-                    "relaunch the app.", superchat.Application.ATTR_ERROR);
+            mListener.onError("Error with the server, try again or " +
+                    "relaunch the app.");
             return false;
         }
 
-        mApp.addToChat("[Server]: You are connected as \"" + mName + "\".",
-                superchat.Application.ATTR_SERVER);
+        mListener.onNotice("You are connected as \"" + mName + "\".");
 
         return true;
     }
 
+    /**
+     * Wait in background for the late acceptance (in "response") of the
+     * connection of "name", to release the pseudo if accepted.
+     */
+    private void releaseIfAccepted(BlockingQueue<Object> response, String name)
+    {
+        Thread thread = new Thread(() ->
+                {
+                    try
+                    {
+                        if ((boolean) response.take())
+                        {
+                            releasePseudo(name);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally
+                    {
+                        mPendingRequests.values().remove(response);
+                    }
+                }, "connection-release"
+        );
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Release the pseudo "name" reserved by a failed connection.
+     */
+    private void releasePseudo(String name)
+    {
+        try
+        {
+            publishDisconnection(name);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot release the pseudo " + name + " " + e);
+        }
+    }
+
+    /**
+     * Publish the disconnection of "name" (releasing her/his pseudo on
+     * the server side, even if the server restarts meanwhile).
+     */
+    private void publishDisconnection(String name) throws IOException
+    {
+        superchat.data.Connection disconnection =
+                new superchat.data.Connection(false, name);
+        AMQP.BasicProperties props = new AMQP.BasicProperties
+                .Builder()
+                .deliveryMode(2)
+                .priority(PRIORITY_CONTROL)
+                .build();
+        mChannel.basicPublish("", mPresenceQueue, props,
+                SerializationUtils.serialize(disconnection));
+    }
+
     /**
      * Try to connect the client on the server, and wait for its response,
      * by using a RPC call. Return true if user correctly created,
@@ -150,141 +403,755 @@ public class Client
         superchat.data.Connection connection =
                 new superchat.data.Connection(true, name);
 
-        final String corrId = UUID.randomUUID().toString();
+        return rpc(connection, 3);
+    }
 
-        String replyQueueName = mChannel.queueDeclare().getQueue();
+    /**
+     * Publish the "request" on the server side, and return the queue in
+     * which its "replies" responses will be put.
+     */
+    private BlockingQueue<Object> rpc(Serializable request, int replies) throws IOException
+    {
+        // Routed back to this session by the manager.
+        final String corrId = mSession.getId() + "/" + UUID.randomUUID();
+
+        // The connections ahead of the history requests waiting.
         AMQP.BasicProperties props = new AMQP.BasicProperties
                 .Builder()
                 .correlationId(corrId)
-                .replyTo(replyQueueName)
+                .replyTo(mSession.getReplyQueue())
+                .priority(request instanceof superchat.data.Connection ?
+                        PRIORITY_CONTROL : PRIORITY_BULK)
                 .build();
-
-        // Publish the user with the pseudo on the server side.
-        mChannel.basicPublish("", QUEUE_CONNECTIONS, props,
-                SerializationUtils.serialize(connection));
         // Get the response.
-        final BlockingQueue<Object> response = new ArrayBlockingQueue<>(3);
-
-        mChannel.basicConsume(replyQueueName, true,
-                (consumerTag, delivery) ->
-                {
-                    if (delivery.getProperties().getCorrelationId().equals(corrId))
-                    {
-                        response.offer(SerializationUtils
-                                .deserialize(delivery.getBody()));
-                    }
-                },
-                consumerTag -> { }
-        );
+        final BlockingQueue<Object> response = new ArrayBlockingQueue<>(replies);
+        mPendingRequests.put(corrId, response);
+        // Publish the request on the server side.
+        mChannel.basicPublish("", request instanceof superchat.data.Connection ?
+                        mPresenceQueue : QUEUE_CONNECTIONS, props,
+                SerializationUtils.serialize(request));
 
         return response;
     }
 
+    /**
+     * Consume the reply received in "delivery": a response to a pending
+     * request, or the rejection of a sent message.
+     */
+    private void onReceiveReply(Delivery delivery)
+    {
+        Object reply = SerializationUtils.deserialize(delivery.getBody());
+
+        if (reply instanceof Rejection)
+        {
+            onReceiveRejection((Rejection) reply);
+            return;
+        }
+
+        String corrId = delivery.getProperties().getCorrelationId();
+        BlockingQueue<Object> response = mPendingRequests.get(corrId);
+
+        if (response != null)
+        {
+            response.offer(reply);
+            // All the responses were received.
+            if (response.remainingCapacity() == 0)
+            {
+                mPendingRequests.remove(corrId);
+            }
+        }
+    }
+
     /**
      * Disconnect the user of the server by releasing her/his pseudo.
      */
     public void disconnect()
     {
-        mApp.addToChat("[Server]: Initiating your disconnection...",
-                superchat.Application.ATTR_SERVER);
+        mListener.onNotice("Initiating your disconnection...");
 
-        superchat.data.Connection disconnection =
-                new superchat.data.Connection(false, mName);
         try
         {
             // Try to unbind the user on the server side.
-            mChannel.basicPublish("", QUEUE_CONNECTIONS,
-                    null, SerializationUtils.serialize(disconnection));
+            publishDisconnection(mName);
+            mSession.unsubscribeDirect(mName);
             mIsConnected = false;
         }
         catch (Exception e)
         {
-            mApp.addToChat("[Server]: Error, cannot completely disconnect you. " +
-                            "Your username may be unavailable until the server restarts." +
-                            "If the application seems to be not running correctly, please " +
-                            "restart it.",
-                    superchat.Application.ATTR_ERROR);
+            mListener.onError("Error, cannot completely disconnect you. " +
+                    "Your username may be unavailable until the server restarts." +
+                    "If the application seems to be not running correctly, please " +
+                    "restart it.");
             return;
         }
 
         // Remove the connected users.
-        mApp.clearUsersList();
+        setUsers(List.of());
+        mListener.onUsers(List.of());
 
-        mApp.addToChat("[Server]: Disconnection finished.",
-                superchat.Application.ATTR_SERVER);
+        mListener.onNotice("Disconnection finished.");
     }
 
     /**
-     * Send the user message to the clients and the server.
+     * Send the user message to the server, which spreads it to the clients.
      */
     public void sendMessage(String message)
     {
-        // Current time.
+        // Encapsulate the message data (with an id, so that the server
+        // drops it if sent twice).
+        submitMessage(new Message(mName, message, getTime(),
+                UUID.randomUUID().toString()));
+    }
+
+    /**
+     * Send the user message to the server, which sends it to the user
+     * named "to" only.
+     */
+    public void sendDirectMessage(String to, String message)
+    {
+        submitMessage(new Message(mName, message, getTime(),
+                UUID.randomUUID().toString(), to));
+    }
+
+    /**
+     * Send the content of "file" to the server (in background, on a channel
+     * of its own), then a message referencing it to all the users, or to the
+     * user named "to" only if not null.
+     */
+    public void sendAttachment(Path file, String to)
+    {
+        Thread thread = new Thread(() ->
+                {
+                    try (AttachmentTransfer transfer = new AttachmentTransfer(
+                            mSession.createChannel()))
+                    {
+                        mListener.onNotice("Sending \"" + file.getFileName() + "\"...");
+                        Attachment attachment = transfer.upload(file);
+                        // Only its reference in the message.
+                        submitMessage(new Message(mName, "Shared the file \""
+                                + attachment.getFileName() + "\".", getTime(),
+                                UUID.randomUUID().toString(), to).withAttachment(attachment));
+                    }
+                    catch (Exception e)
+                    {
+                        mListener.onError("Error, cannot send the file \""
+                                + file.getFileName() + "\": " + e.getMessage());
+                    }
+                }, "attachment-upload"
+        );
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Retrieve the content of "attachment" from the server in "target"
+     * (in background, on a channel of its own).
+     */
+    public void downloadAttachment(Attachment attachment, Path target)
+    {
+        Thread thread = new Thread(() ->
+                {
+                    try (AttachmentTransfer transfer = new AttachmentTransfer(
+                            mSession.createChannel()))
+                    {
+                        transfer.download(attachment, target);
+                        mListener.onNotice("File saved in \"" + target + "\".");
+                    }
+                    catch (Exception e)
+                    {
+                        mListener.onError("Error, cannot retrieve the file \""
+                                + attachment.getFileName() + "\": " + e.getMessage());
+                    }
+                }, "attachment-download"
+        );
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Return the current time, as displayed with the messages.
+     */
+    private static String getTime()
+    {
         String DATE_FORMAT = "HH:mm:ss";
-        String time = LocalDateTime.now()
-                .format(DateTimeFormatter.ofPattern(DATE_FORMAT));
-        // Encapsulate the message data.
-        Message msg = new Message(mName, message, time);
 
+        return LocalDateTime.now().format(DateTimeFormatter.ofPattern(DATE_FORMAT));
+    }
+
+    /**
+     * Publish "msg" to the server in background (see "publishMessage").
+     */
+    private void submitMessage(Message msg)
+    {
+        mPublisher.execute(() -> publishMessage(msg));
+    }
+
+    /**
+     * Publish "msg" to the server, sending it again if not confirmed
+     * (waiting for the confirms, so not on the GUI thread).
+     */
+    private void publishMessage(Message msg)
+    {
+        // Send the message to the server, which spreads it to the other clients
+        // (persistent, to be kept by a durable queue until in the history).
+        PublishEvent event = new PublishEvent();
+        event.begin();
+        event.traceId = msg.getId();
+        AMQP.BasicProperties props = new AMQP.BasicProperties
+                .Builder()
+                .correlationId(mSession.getId())
+                .replyTo(mSession.getReplyQueue())
+                .deliveryMode(2)
+                .headers(MessageTrace.headers(msg.getId()))
+                .build();
+
+        for (int attempt = 1; ; attempt++)
+        {
+            event.attempts = attempt;
+
+            try
+            {
+                mChannel.basicPublish("", QUEUE_MESSAGES, props,
+                        SerializationUtils.serialize(msg));
+                // Sent again if not confirmed (dropped by the server if received twice).
+                if (mChannel.waitForConfirms(CONFIRM_TIMEOUT))
+                {
+                    break;
+                }
+            }
+            catch (IOException | TimeoutException e)
+            {
+                // Sent again.
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (attempt == SEND_ATTEMPTS)
+            {
+                mListener.onError("Error, cannot distribute this message.");
+                break;
+            }
+        }
+
+        event.commit();
+    }
+
+    /**
+     * Inform the other users that the user is typing (at most once per
+     * second, whatever the number of calls).
+     */
+    public void sendTyping()
+    {
+        long now = System.nanoTime();
+
+        synchronized (this)
+        {
+            if (! mIsConnected || (mTypingTime != 0 && now - mTypingTime < TYPING_INTERVAL))
+            {
+                return;
+            }
+
+            mTypingTime = now;
+        }
+
+        sendSignal(new Signal(Signal.TYPE_TYPING, mName, 0));
+    }
+
+    /**
+     * Inform the other users that the user has read the displayed messages
+     * (only if new ones were displayed since the last call).
+     */
+    public void markRead()
+    {
+        long seq;
+
+        synchronized (this)
+        {
+            if (! mIsConnected || mLastSeq <= mReadSeq)
+            {
+                return;
+            }
+
+            seq = mLastSeq;
+            mReadSeq = seq;
+        }
+
+        sendSignal(new Signal(Signal.TYPE_READ, mName, seq));
+    }
+
+    /**
+     * Publish "signal" to the other clients (transient and not confirmed:
+     * a lost one is replaced by the next one).
+     */
+    private void sendSignal(Signal signal)
+    {
         try
         {
-            // Spread the message to the other clients (and server).
-            mChannel.basicPublish(EXCHANGE_MESSAGES, "", null,
-                    SerializationUtils.serialize(msg));
+            mChannel.basicPublish(EXCHANGE_SIGNALS, "", null,
+                    SerializationUtils.serialize(signal));
         }
         catch (IOException e)
         {
-            mApp.addToChat("[Server]: Error, cannot distribute this message.",
-                    Application.ATTR_ERROR);
+            System.err.println("Error: when sending a signal " + e);
+        }
+    }
+
+    /**
+     * Consume the signal of another user received in "delivery" by giving
+     * it to the listener.
+     */
+    private void onReceiveSignal(Delivery delivery)
+    {
+        Signal signal = SerializationUtils.deserialize(delivery.getBody());
+
+        if (signal.getName() == null || signal.getName().equals(mName))
+        {
+            return;
+        }
+
+        if (signal.getType() == Signal.TYPE_TYPING)
+        {
+            mListener.onTyping(signal.getName());
+        }
+        else if (signal.getType() == Signal.TYPE_READ)
+        {
+            mListener.onRead(signal.getName(), signal.getSeq());
         }
     }
 
     /**
-     * Consume the message received in "delivery" by printing it in the chat.
+     * Consume the message received in "delivery" by giving it to the listener
+     * (waiting for it, so that a slow one slows down the consumption).
      */
-    private void onReceiveMessage(String consumerTag, Delivery delivery)
+    private void onReceiveMessage(Delivery delivery) throws Exception
+    {
+        // A message, or a batch of messages.
+        Object payload = SerializationUtils.deserialize(delivery.getBody());
+        @SuppressWarnings("unchecked")
+        List<Message> messages = payload instanceof Message ?
+                List.of((Message) payload) : (List<Message>) payload;
+
+        List<Message> unseen = new ArrayList<>(messages.size());
+
+        synchronized (this)
+        {
+            for (Message message : messages)
+            {
+                // Already displayed by the resync after a recovery.
+                if (message.getSeq() > 0 && message.getSeq() <= mLastSeq)
+                {
+                    continue;
+                }
+
+                mLastSeq = Math.max(mLastSeq, message.getSeq());
+                mResumedSeq = Math.min(mResumedSeq, message.getSeq());
+                unseen.add(message);
+            }
+
+            if (mSkipped > 0)
+            {
+                unseen.forEach(message -> mShownSinceSkip.add(message.getSeq()));
+            }
+        }
+
+        for (Message message : unseen)
+        {
+            ClientReceiveEvent event = new ClientReceiveEvent();
+
+            if (event.shouldCommit())
+            {
+                event.traceId = message.getId();
+                event.seq = message.getSeq();
+                event.commit();
+            }
+        }
+
+        unseen.forEach(mListener::onMessage);
+    }
+
+    /**
+     * Return the number of messages in "delivery" (without reading them).
+     */
+    private static int countMessagesOf(Delivery delivery)
+    {
+        Map<String, Object> headers = delivery.getProperties().getHeaders();
+
+        if (headers == null || ! headers.containsKey(HEADER_COUNT))
+        {
+            return 1;
+        }
+
+        return ((Number) headers.get(HEADER_COUNT)).intValue();
+    }
+
+    /**
+     * Inform the user that "count" messages were not displayed to keep up.
+     */
+    private void onSkipMessages(int count)
+    {
+        int skipped;
+
+        synchronized (this)
+        {
+            if (mSkipped == 0)
+            {
+                mSkippedAfterSeq = mLastSeq;
+                mShownSinceSkip.clear();
+            }
+
+            mSkipped += count;
+            skipped = mSkipped;
+        }
+
+        mListener.onMessagesSkipped(skipped);
+    }
+
+    /**
+     * Retrieve the skipped messages from the server history, and give them
+     * to the listener (waiting for the server: not to call from the GUI
+     * thread).
+     */
+    public void loadSkippedMessages()
+    {
+        int skipped;
+        long afterSeq;
+        Set<Long> shown;
+
+        synchronized (this)
+        {
+            skipped = mSkipped;
+            afterSeq = mSkippedAfterSeq;
+            shown = new HashSet<>(mShownSinceSkip);
+        }
+
+        if (skipped == 0)
+        {
+            return;
+        }
+
+        try
+        {
+            // The first ones after the last displayed before them are the
+            // skipped and displayed ones (the next ones not being received yet).
+            @SuppressWarnings("unchecked")
+            ArrayList<Message> messages = (ArrayList<Message>)
+                    await(rpc(new HistoryRequest(afterSeq, skipped + shown.size()), 1));
+            messages.removeIf(message -> shown.contains(message.getSeq()));
+
+            synchronized (this)
+            {
+                // Others may have been skipped meanwhile (after these ones).
+                mSkipped -= skipped;
+                messages.forEach(message -> mShownSinceSkip.add(message.getSeq()));
+
+                if (mSkipped == 0)
+                {
+                    mShownSinceSkip.clear();
+                }
+            }
+
+            mListener.onNotice("The " + messages.size() + " skipped messages:");
+            mListener.onHistory(messages);
+        }
+        catch (Exception e)
+        {
+            mListener.onError("Error, cannot load the skipped messages.");
+            // To try again.
+            mListener.onMessagesSkipped(skipped);
+        }
+    }
+
+    /**
+     * Consume the direct message received in "delivery" by giving it to
+     * the listener.
+     */
+    private void onReceiveDirect(Delivery delivery)
     {
         Message message = SerializationUtils.deserialize(delivery.getBody());
 
-        mApp.addToChat("(" + message.getTime() + ") ", Application.ATTR_BOLD);
-        mApp.addToChat(message.getName() + ": ", Application.ATTR_BOLD);
-        mApp.addToChat(message.getContent(), Application.ATTR_PLAIN);
+        mListener.onDirectMessage(message);
     }
 
     /**
-     * Consume the connection/disconnection received in "delivery" by printing it in the chat.
+     * Retrieve the last direct messages between the user and the user
+     * named "with", and give them to the listener (waiting for the server:
+     * not to call from the GUI thread).
      */
-    private void onReceiveConnection(String consumerTag, Delivery delivery)
+    public void loadConversation(String with)
     {
-        superchat.data.Connection connection =
-                SerializationUtils.deserialize(delivery.getBody());
+        try
+        {
+            @SuppressWarnings("unchecked")
+            ArrayList<Message> messages = (ArrayList<Message>)
+                    await(rpc(new ConversationRequest(mName, with, CONVERSATION_COUNT), 1));
+
+            mListener.onNotice("Your conversation with \"" + with + "\" ("
+                    + messages.size() + " messages):");
+            messages.forEach(mListener::onDirectMessage);
+        }
+        catch (Exception e)
+        {
+            mListener.onError("Error, cannot load this conversation.");
+        }
+    }
+
+    /**
+     * Inform the user that the connection was recovered (after "millis"),
+     * and resync the state missed meanwhile.
+     */
+    private void onRecovery(long millis)
+    {
+        mListener.onNotice("Connection recovered (after " + millis + " ms).");
+
+        if (! mIsConnected)
+        {
+            return;
+        }
+
+        long afterSeq;
+
+        synchronized (this)
+        {
+            afterSeq = mLastSeq;
+            mResumedSeq = Long.MAX_VALUE;
+        }
+        // Not in the recovery thread (the replies come from the connection).
+        Thread thread = new Thread(() -> resync(afterSeq), "resync");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-        if (connection.isIsConnecting())
+    /**
+     * Retrieve the connected users and the messages after "afterSeq"
+     * (missed while recovering), and give them to the listener.
+     */
+    private void resync(long afterSeq)
+    {
+        try
         {
-            mApp.addToChat(connection.getName() + " is connected.",
-                    Application.ATTR_SERVER);
-            mApp.addToUsersList(connection.getName());
+            BlockingQueue<Object> response = rpc(new SyncRequest(afterSeq), 2);
+            @SuppressWarnings("unchecked")
+            ArrayList<String> connectedClients = (ArrayList<String>)
+                    response.poll(SYNC_TIMEOUT, TimeUnit.SECONDS);
+            @SuppressWarnings("unchecked")
+            ArrayList<Message> messages = (ArrayList<Message>)
+                    response.poll(SYNC_TIMEOUT, TimeUnit.SECONDS);
+
+            if (connectedClients == null || messages == null)
+            {
+                mListener.onError("Error, cannot resync with the server, " +
+                        "some messages may be missing.");
+                return;
+            }
+
+            setUsers(connectedClients);
+            mListener.onUsers(connectedClients);
+
+            List<Message> missed = new ArrayList<>(messages.size());
+
+            synchronized (this)
+            {
+                for (Message message : messages)
+                {
+                    // The ones from the resumed position are received anyway.
+                    if (message.getSeq() < mResumedSeq)
+                    {
+                        mLastSeq = Math.max(mLastSeq, message.getSeq());
+                        missed.add(message);
+                    }
+                }
+            }
+
+            if (! missed.isEmpty())
+            {
+                mListener.onNotice("The " + missed.size() + " missed messages:");
+                mListener.onHistory(missed);
+            }
         }
-        else
+        catch (Exception e)
         {
-            mApp.addToChat(connection.getName() + " is disconnected.",
-                    Application.ATTR_SERVER);
-            mApp.removeFromUserList(connection.getName());
+            mListener.onError("Error, cannot resync with the server, " +
+                    "some messages may be missing.");
         }
     }
 
+    /**
+     * Consume the rejection of a sent message by reporting it to the listener.
+     */
+    private void onReceiveRejection(Rejection rejection)
+    {
+        mListener.onError("Your message \"" + rejection.getMessage().getContent()
+                + "\" was not sent: " + rejection.getReason());
+    }
+
+    /**
+     * Consume the connection/disconnection received in "delivery" by giving
+     * it to the listener (or the presence summary, by correcting the
+     * connected users with it).
+     */
+    private void onReceiveConnection(Delivery delivery)
+    {
+        Object data = SerializationUtils.deserialize(delivery.getBody());
+
+        if (data instanceof PresenceSummary)
+        {
+            onReceiveSummary((PresenceSummary) data);
+            return;
+        }
+
+        superchat.data.Connection connection = (superchat.data.Connection) data;
+
+        synchronized (mUsers)
+        {
+            if (connection.isIsConnecting())
+            {
+                mUsers.add(connection.getName());
+            }
+            else
+            {
+                mUsers.remove(connection.getName());
+            }
+        }
+
+        mListener.onPresence(connection.getName(), connection.isIsConnecting());
+    }
+
+    /**
+     * Replace the connected users of the shard of "summary" by its ones,
+     * and give them all to the listener if it changed anything.
+     */
+    private void onReceiveSummary(PresenceSummary summary)
+    {
+        ArrayList<String> names;
+
+        synchronized (mUsers)
+        {
+            if (! mIsConnected)
+            {
+                return;
+            }
+
+            Set<String> users = new TreeSet<>(mUsers);
+            mUsers.removeIf(name -> superchat.data.Connection.shardOf(name,
+                    summary.getShards()) == summary.getShard());
+            mUsers.addAll(summary.getNames());
+
+            if (users.equals(mUsers))
+            {
+                return;
+            }
+
+            names = new ArrayList<>(mUsers);
+        }
+
+        mListener.onUsers(names);
+    }
+
+    private void setUsers(List<String> names)
+    {
+        synchronized (mUsers)
+        {
+            mUsers.clear();
+            mUsers.addAll(names);
+        }
+    }
+
+    /**
+     * Return the queue of the connection/disconnection of "name": the one of
+     * its presence shard if the presence is sharded and the server consumes
+     * it, or the requests one (e.g. if the server has fewer shards). Any
+     * consumed one works, the server checking the pseudo in its own shard.
+     */
+    private String presenceQueueOf(String name)
+    {
+        if (PRESENCE_SHARDS == 1)
+        {
+            return QUEUE_CONNECTIONS;
+        }
+
+        String queue = QUEUE_PRESENCE
+                + superchat.data.Connection.shardOf(name, PRESENCE_SHARDS) + "/";
+
+        try
+        {
+            // Apart: closed by the broker if the queue doesn't exist.
+            Channel channel = mSession.createChannel();
+
+            try
+            {
+                if (channel.queueDeclarePassive(queue).getConsumerCount() > 0)
+                {
+                    return queue;
+                }
+            }
+            finally
+            {
+                if (channel.isOpen())
+                {
+                    channel.close();
+                }
+            }
+        }
+        catch (IOException | TimeoutException e)
+        {
+            // Doesn't exist.
+        }
+
+        System.err.println("Error: " + queue + " is not consumed by the server (is "
+                + "superchat.presence.shards the same?), using the requests queue.");
+
+        return QUEUE_CONNECTIONS;
+    }
+
+    /**
+     * Return the next reply put in "response" (see "rpc"), or throw if the
+     * server doesn't send it in time.
+     */
+    private Object await(BlockingQueue<Object> response)
+            throws InterruptedException, TimeoutException
+    {
+        Object reply = response.poll(REPLY_TIMEOUT, TimeUnit.SECONDS);
+
+        if (reply == null)
+        {
+            // The late replies are dropped.
+            mPendingRequests.values().remove(response);
+            throw new TimeoutException("no reply from the server");
+        }
+
+        return reply;
+    }
+
     public boolean isConnected()
     {
         return mIsConnected;
     }
 
+    public String getName()
+    {
+        return mName;
+    }
+
+    /**
+     * Close the session (and the connection if not shared).
+     */
     public void closeRabbitMQ()
     {
         try
         {
-            mConnection.close();
+            mInbound.stop();
+            mPublisher.shutdown();
+            mSession.close();
+
+            if (mOwnsManager)
+            {
+                mManager.close();
+            }
         }
-        catch (IOException e)
+        catch (IOException | TimeoutException e)
         {
             System.err.println("Error: when closing rabbitMQ connection" + e);
         }
@@ -0,0 +1,147 @@
+package superchat;
+
+import superchat.client.ConnectionManager;
+import superchat.data.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Run "Client" sessions without GUI (for bots and bridges), sharing pooled
+ * connections to the broker, with a channel per session.
+ */
+public class HeadlessRunner
+{
+    /**
+     * Connect "sessions" bots named "<prefix>-<i>" (the first one printing
+     * what it receives), e.g. to load the server.
+     */
+    public static void main(String[] args)
+    {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        String prefix = args.length > 2 ? args[2] : "bot";
+
+        try
+        {
+            HeadlessRunner runner = new HeadlessRunner(host);
+
+            for (int i = 0; i < sessions; i++)
+            {
+                String name = prefix + "-" + i;
+                Client client = runner.newSession(new PrintingListener(name, i == 0));
+
+                if (! client.connect(name))
+                {
+                    System.err.println("Error: cannot connect " + name + ".");
+                }
+            }
+
+            System.out.println(sessions + " sessions running...");
+            // Disconnect them all when exiting.
+            Runtime.getRuntime().addShutdownHook(new Thread(runner::close));
+        }
+        catch (IOException | TimeoutException e)
+        {
+            System.err.println("Error: " + e);
+            System.exit(-1);
+        }
+    }
+
+
+    // Shared by all the sessions.
+    private final ConnectionManager mManager;
+    private final List<Client> mSessions;
+
+    public HeadlessRunner(String host)
+    {
+        mManager = new ConnectionManager(host, Client.getPrefetch());
+        mSessions = new ArrayList<>();
+    }
+
+    /**
+     * Open a new session on the shared connections, informing "listener".
+     */
+    public synchronized Client newSession(ChatListener listener)
+            throws IOException, TimeoutException
+    {
+        Client client = new Client(mManager);
+        client.setListener(listener);
+        mSessions.add(client);
+
+        return client;
+    }
+
+    /**
+     * Disconnect the connected sessions, and close the shared connections.
+     */
+    public synchronized void close()
+    {
+        mSessions.forEach(client ->
+                {
+                    if (client.isConnected())
+                    {
+                        client.disconnect();
+                    }
+                }
+        );
+        mSessions.clear();
+        mManager.close();
+    }
+
+    /**
+     * Print the session events on the standard output
+     * (only the errors if not "isVerbose").
+     */
+    private static class PrintingListener implements ChatListener
+    {
+        private final String mName;
+        private final boolean mIsVerbose;
+
+        PrintingListener(String name, boolean isVerbose)
+        {
+            mName = name;
+            mIsVerbose = isVerbose;
+        }
+
+        @Override
+        public void onMessage(Message message)
+        {
+            if (mIsVerbose)
+            {
+                System.out.println(mName + " < (" + message.getTime() + ") "
+                        + message.getName() + ": " + message.getContent());
+            }
+        }
+
+        @Override
+        public void onDirectMessage(Message message)
+        {
+            if (mIsVerbose)
+            {
+                System.out.println(mName + " < (" + message.getTime() + ") "
+                        + message.getName() + " > " + message.getTo() + ": "
+                        + message.getContent());
+            }
+        }
+
+        @Override
+        public void onPresence(String name, boolean isConnected)
+        {
+            if (mIsVerbose)
+            {
+                System.out.println(mName + " < " + name
+                        + (isConnected ? " is connected." : " is disconnected."));
+            }
+        }
+
+        @Override
+        public void onError(String error)
+        {
+            System.err.println(mName + " < Error: " + error);
+        }
+    }
+}
@@ -1,17 +1,54 @@
 package superchat;
 
 import com.rabbitmq.client.*;
+import com.rabbitmq.client.impl.recovery.AutorecoveringConnection;
 import org.apache.commons.lang3.SerializationUtils;
+import superchat.data.AttachmentChunk;
+import superchat.data.AttachmentRequest;
+import superchat.data.ConversationRequest;
+import superchat.data.HistoryRequest;
 import superchat.data.Message;
+import superchat.data.PresenceSummary;
+import superchat.data.Rejection;
+import superchat.data.ReplicationRequest;
+import superchat.data.SyncRequest;
+import superchat.server.AttachmentStore;
+import superchat.server.ChatState;
+import superchat.server.Dispatcher;
+import superchat.server.FanoutPublisher;
+import superchat.server.GroupCommitter;
+import superchat.server.HistoryCompactor;
+import superchat.server.IdempotencyCache;
+import superchat.server.PresenceRegistry;
+import superchat.server.QueueConfig;
+import superchat.server.Replicator;
+import superchat.server.RetentionPolicy;
+import superchat.server.Snapshotter;
+import superchat.server.Standby;
+import superchat.server.UserSession;
+import superchat.trace.HistoryAppendEvent;
+import superchat.trace.MessageTrace;
+import superchat.trace.ServerReceiveEvent;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
 
 
 /**
- * Handle connections/disconnections,
- * and load/save messages history on start/shut off.
+ * Handle connections/disconnections, and keep the messages history
+ * (restored on start from the last snapshot and the log after it).
  */
 public class Server
 {
@@ -35,64 +72,213 @@ public class Server
     // (used in RPC i.e. server checking when connecting).
     private final static String QUEUE_CONNECTIONS =
             "rabbitmq://server/queue/connections_disconnections/";
-    // Messages exchange (between the clients and also the server).
+    // To get the connection/disconnection requests of the users of a presence
+    // shard (followed by its number and "/"), when there are several.
+    private final static String QUEUE_PRESENCE =
+            "rabbitmq://server/queue/presence/";
+    // To get the messages from the clients (to check them before spreading them).
+    private final static String QUEUE_MESSAGES =
+            "rabbitmq://server/queue/messages/";
+    // To get the files attached to the messages (as chunks), and the
+    // requests of their content.
+    private final static String QUEUE_ATTACHMENTS =
+            "rabbitmq://server/queue/attachments/";
+    // To replicate the state changes to the standby server (published by
+    // the primary one).
+    private final static String QUEUE_REPLICATION =
+            "rabbitmq://server/queue/replication/";
+    // Messages exchange (published by this server to the clients).
     private final static String EXCHANGE_MESSAGES =
             "rabbitmq://server/exchange/messages/";
     // Connections and disconnections exchange (published by this server).
     private final static String EXCHANGE_CONNECTIONS =
             "rabbitmq://server/exchange/connections_disconnections/";
+    // Direct messages exchange (published by this server to the clients,
+    // with the recipient name as routing key).
+    private final static String EXCHANGE_DIRECT =
+            "rabbitmq://server/exchange/direct/";
+    // Typing and read signals exchange (published by the clients to each
+    // other, never received by this server).
+    private final static String EXCHANGE_SIGNALS =
+            "rabbitmq://server/exchange/signals/";
 
-    // Message backup path constants.
+    // Priorities of the requests (the control ones, i.e. connections and
+    // disconnections, being delivered ahead of the bulk ones, e.g. history).
+    private final static int PRIORITY_BULK = 0;
+    private final static int PRIORITY_CONTROL = 1;
+
+    // Maximum number of chunks received, or sent, without acknowledgment
+    // (so that a large file doesn't fill the memory).
+    private final static int ATTACHMENT_WINDOW = 16;
+    // Maximum time to wait for the broker to confirm the sent chunks (in ms).
+    private final static int CONFIRM_TIMEOUT = 30000;
+
+    // Run with a standby server (the first one started being the primary,
+    // the other one taking over when it's gone).
+    private final static boolean REPLICATION = Boolean.getBoolean("superchat.replication");
+    // Maximum number of batches waiting for the standby (the oldest ones
+    // being dropped, after which it asks for a snapshot).
+    private final static int REPLICATION_MAX_LENGTH = 100000;
+
+    // Number of presence shards (see "Connection.shardOf"), each with its
+    // own queue, consumer and lock, so that many connections are checked
+    // in parallel. /!\ The same as Client.java (the clients falling back
+    // to the requests queue when their shard one isn't consumed).
+    private final static int PRESENCE_SHARDS =
+            Math.max(1, Integer.getInteger("superchat.presence.shards", 1));
+    // Time between two checks of the shards to publish the summary of the
+    // changed ones (in s).
+    private final static long SUMMARY_PERIOD =
+            Long.getLong("superchat.presence.summarySeconds", 10);
+
+    // Maximum number of characters in a message.
+    private final static int MESSAGE_MAX_LENGTH =
+            Integer.getInteger("superchat.message.maxLength", 2000);
+
+    // Display time of a message (/!\ "HH:mm:ss" as in Client.java), also
+    // so that the interned times are at most one per second of a day.
+    private final static Pattern TIME_PATTERN =
+            Pattern.compile("([01][0-9]|2[0-3]):[0-5][0-9]:[0-5][0-9]");
+
+    // Number of tries to spread a stored message (the clients get it back
+    // from the history when they resync otherwise).
+    private final static int SPREAD_ATTEMPTS = 3;
+
+    // What became of a received message (traced).
+    private final static String OUTCOME_STORED = "stored";
+    private final static String OUTCOME_DUPLICATE = "duplicate";
+    private final static String OUTCOME_REJECTED = "rejected";
+    private final static String OUTCOME_FAILED = "failed";
+
+    // Home directory (snapshot and log), and legacy message backup path.
     private final String HOME_DIR_PATH = System.getProperty("user.home")
             + File.separator + ".superchat";
     private final String HISTORY_FILE_PATH = HOME_DIR_PATH + File.separator
             + "history2";
 
-    // To communicate.
+    // To communicate, a channel (so a consumer thread) per kind of traffic:
+    // the requests and connections/disconnections, the messages, and the
+    // replies to the bulk requests.
     private Connection mConnection;
+    private Channel mControlChannel;
     private Channel mChannel;
-    private final Object mMonitor;
-    // Current connected user pseudos.
-    private final ArrayList<String> mUserNames;
-    // All the messages.
-    private ArrayList<Message> mMessages;
+    private Channel mBulkChannel;
+    private volatile String mConnectionsTag;
+    private volatile String mMessagesTag;
+    private volatile String mAttachmentsTag;
+    // Receive the connections/disconnections of each presence shard (if
+    // several).
+    private Channel[] mPresenceChannels;
+    private final AtomicReferenceArray<String> mPresenceTags;
+    // Publishes the presence summaries, and the versions of the shards
+    // last published (only used by its thread).
+    private ScheduledExecutorService mSummaries;
+    private final long[] mSummaryVersions;
+    // Receives the attachments (apart, not to slow down the messages).
+    private Channel mAttachmentChannel;
+    // When the connection to the broker was lost (to measure its recovery).
+    private volatile long mLostTime;
+    // Spreads the accepted messages to the clients.
+    private FanoutPublisher mFanout;
+    // Runs the RabbitMQ consumers.
+    private ExecutorService mConsumerExecutor;
+    // Runs the client requests.
+    private final Dispatcher mDispatcher;
+    // Released once shut down.
+    private final CountDownLatch mStopped;
+    // Current connected user pseudos, and all the messages.
+    private final ChatState mState;
+    // To enforce the history retention in background.
+    private final HistoryCompactor mCompactor;
+    // To save the state periodically.
+    private final Snapshotter mSnapshotter;
+    // To make the log durable (before acknowledging the messages).
+    private final GroupCommitter mCommitter;
+    // Ids of the last accepted messages (to drop the resent ones).
+    private final IdempotencyCache mSeenIds;
+    // The files attached to the messages.
+    private final AttachmentStore mAttachments;
+    // Follows the primary server (while this one is the standby).
+    private Standby mStandby;
+    // Sends the state changes to the standby server (if replicated).
+    private Replicator mReplicator;
 
 
     public Server(String host)
     {
-        mMonitor = new Object();
-        mUserNames = new ArrayList<>();
-        mMessages = new ArrayList<>();
+        mDispatcher = new Dispatcher();
+        mStopped = new CountDownLatch(1);
+        mState = new ChatState(PRESENCE_SHARDS);
+        mPresenceTags = new AtomicReferenceArray<>(PRESENCE_SHARDS);
+        mSummaryVersions = new long[PRESENCE_SHARDS];
+        mCompactor = new HistoryCompactor(mState.getHistory(), mState.getDirectHistory(),
+                RetentionPolicy.fromSystemProperties());
+        mSnapshotter = new Snapshotter(mState, Paths.get(HOME_DIR_PATH));
+        mCommitter = new GroupCommitter(mState);
+        mSeenIds = new IdempotencyCache();
+        mAttachments = new AttachmentStore(Paths.get(HOME_DIR_PATH, "attachments"));
 
-        initCommunication(host);
-        // Create/check existence of message history file.
+        // Create/check existence of the home directory.
         createHomeDir();
-        createHistoryFile();
-        // And retrieve this history (if needed).
-        retrieveMessageHistory();
-        // Save the messages when exiting.
-        Runtime.getRuntime().addShutdownHook(new Thread(() ->
+        // And retrieve the state (before receiving anything).
+        retrieveState();
+        openAttachments();
+        mCompactor.start();
+        mSnapshotter.start();
+        mCommitter.start();
+
+        initCommunication(host);
+        // Finish the requests and save a last snapshot when exiting.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+
+        try
+        {
+            if (! takeLease())
+            {
+                if (! REPLICATION)
                 {
-                    saveMessageHistory();
-                    closeRabbitMQ();
+                    System.err.println("Error: another server is already running.");
+                    System.exit(-1);
                 }
-            )
-        );
+
+                if (! followPrimary())
+                {
+                    // Stopped before taking over.
+                    return;
+                }
+            }
+
+            startPrimary();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: " + e);
+            System.exit(-1);
+        }
 
         System.out.println("Server ready...");
 
-        waitForConnections();
+        awaitShutdown();
     }
 
     private void initCommunication(String host)
     {
         ConnectionFactory factory = new ConnectionFactory();
         factory.setHost(host);
+        mConsumerExecutor = Dispatcher.newExecutor("consumer");
+        factory.setSharedExecutor(mConsumerExecutor);
+        // Reconnect (with the queues, exchanges and consumers) after a
+        // broker restart, waiting longer between each attempt.
+        factory.setAutomaticRecoveryEnabled(true);
+        factory.setTopologyRecoveryEnabled(true);
+        factory.setRecoveryDelayHandler(new RecoveryDelayHandler.ExponentialBackoffDelayHandler());
 
         try
         {
             mConnection = factory.newConnection();
+            watchRecovery((AutorecoveringConnection) mConnection);
             mChannel = mConnection.createChannel();
+            mBulkChannel = mConnection.createChannel();
             initInputOutput();
         }
         catch (IOException | TimeoutException e)
@@ -106,42 +292,321 @@ public class Server
     {
         mChannel.exchangeDeclare(EXCHANGE_MESSAGES, "fanout");
         mChannel.exchangeDeclare(EXCHANGE_CONNECTIONS, "fanout");
+        mChannel.exchangeDeclare(EXCHANGE_SIGNALS, "fanout");
+        mChannel.exchangeDeclare(EXCHANGE_DIRECT, "direct");
 
+        // Durable or not (the waiting requests and messages surviving restarts).
+        QueueConfig queues = QueueConfig.fromSystemProperties();
+        // With priorities, for the waiting connections to go first.
         mChannel.queueDeclare(QUEUE_CONNECTIONS,
+                queues.isDurable(), false, false, queues.getArguments(PRIORITY_CONTROL));
+        mChannel.queueDeclare(QUEUE_MESSAGES,
+                queues.isDurable(), false, false, queues.getArguments());
+
+        if (PRESENCE_SHARDS > 1)
+        {
+            for (int i = 0; i < PRESENCE_SHARDS; i++)
+            {
+                mChannel.queueDeclare(QUEUE_PRESENCE + i + "/",
+                        queues.isDurable(), false, false, queues.getArguments(PRIORITY_CONTROL));
+            }
+        }
+
+        System.out.println("Queues: " + queues + ".");
+        // Lost with the broker (the upload being then done again).
+        mChannel.queueDeclare(QUEUE_ATTACHMENTS,
                 false, false, false, null);
-        String queueName = mChannel.queueDeclare().getQueue();
-        mChannel.queueBind(queueName, EXCHANGE_MESSAGES, "");
+        mFanout = new FanoutPublisher(mChannel, EXCHANGE_MESSAGES);
 
-        mChannel.basicConsume(QUEUE_CONNECTIONS, false,
-                this::onConnection,
-                consumerTag -> { });
-        mChannel.basicConsume(queueName, true,
+        if (REPLICATION)
+        {
+            // Durable, the changes surviving a broker restart.
+            mChannel.queueDeclare(QUEUE_REPLICATION, true, false, false, Map.of(
+                    "x-max-length", REPLICATION_MAX_LENGTH,
+                    "x-overflow", "drop-head"));
+        }
+    }
+
+    /**
+     * Consume the requests, exclusively if replicated: the consumer is the
+     * lease of the primary server, lost with its connection. Return false
+     * if another server has it.
+     */
+    private boolean takeLease() throws IOException
+    {
+        Channel channel = mConnection.createChannel();
+
+        try
+        {
+            // Each request in its own thread (so a slow one doesn't block the others).
+            mConnectionsTag = channel.basicConsume(QUEUE_CONNECTIONS, false, "", false,
+                    REPLICATION, null, this::onRequest, consumerTag -> { });
+        }
+        catch (IOException e)
+        {
+            // Refused: the channel is closed by the broker.
+            return false;
+        }
+
+        mControlChannel = channel;
+        // Refused on recovery (the standby took over meanwhile).
+        mControlChannel.addShutdownListener(cause ->
+                {
+                    if (! cause.isInitiatedByApplication() && ! cause.isHardError())
+                    {
+                        System.err.println("Error: another server took over, stopping.");
+                        // Not in the connection thread (closed by the shutdown).
+                        new Thread(() -> System.exit(-1)).start();
+                    }
+                }
+        );
+
+        return true;
+    }
+
+    /**
+     * Follow the primary server as its standby, until it is gone (and
+     * return true), or this one is stopped.
+     */
+    private boolean followPrimary() throws IOException
+    {
+        System.out.println("Server standby (the primary one is running)...");
+        mStandby = new Standby(mState, mSnapshotter, mBulkChannel, QUEUE_REPLICATION,
+                QUEUE_CONNECTIONS, Paths.get(HOME_DIR_PATH), this::takeLease, message ->
+                        {
+                            if (message.getId() != null)
+                            {
+                                mSeenIds.add(message.getId());
+                            }
+                        }
+                );
+
+        return mStandby.run();
+    }
+
+    /**
+     * Consume the messages and attachments (the requests being consumed
+     * with the lease), and replicate the state changes if asked for.
+     */
+    private void startPrimary() throws IOException
+    {
+        // Acknowledged once in the history.
+        mMessagesTag = mChannel.basicConsume(QUEUE_MESSAGES, false,
                 this::onMessage,
                 consumerTag -> { });
+        // On their own channel, a few chunks at a time.
+        mAttachmentChannel = mConnection.createChannel();
+        mAttachmentChannel.basicQos(ATTACHMENT_WINDOW);
+        mAttachmentsTag = mAttachmentChannel.basicConsume(QUEUE_ATTACHMENTS, false,
+                this::onAttachment,
+                consumerTag -> { });
+
+        if (PRESENCE_SHARDS > 1)
+        {
+            consumePresence();
+        }
+
+        if (REPLICATION)
+        {
+            mReplicator = new Replicator(mState, mConnection.createChannel(), QUEUE_REPLICATION);
+            mReplicator.start();
+        }
+    }
+
+    /**
+     * Log the losses of "connection" and the time taken to recover them,
+     * and follow the consumers renamed by the broker.
+     */
+    private void watchRecovery(AutorecoveringConnection connection)
+    {
+        connection.addShutdownListener(cause ->
+                {
+                    if (! cause.isInitiatedByApplication())
+                    {
+                        mLostTime = System.nanoTime();
+                        System.err.println("Error: connection to the broker lost, recovering...");
+                    }
+                }
+        );
+        connection.addRecoveryListener(new RecoveryListener()
+                {
+                    @Override
+                    public void handleRecovery(Recoverable recoverable)
+                    {
+                        long elapsed = (System.nanoTime() - mLostTime) / 1_000_000;
+                        System.out.println("Recovery: connection recovered in "
+                                + elapsed + " ms.");
+                    }
+
+                    @Override
+                    public void handleRecoveryStarted(Recoverable recoverable)
+                    {
+                    }
+                }
+        );
+        connection.addConsumerRecoveryListener((oldTag, newTag) ->
+                {
+                    if (oldTag.equals(mConnectionsTag))
+                    {
+                        mConnectionsTag = newTag;
+                    }
+                    else if (oldTag.equals(mMessagesTag))
+                    {
+                        mMessagesTag = newTag;
+                    }
+                    else if (oldTag.equals(mAttachmentsTag))
+                    {
+                        mAttachmentsTag = newTag;
+                    }
+                    else
+                    {
+                        for (int i = 0; i < mPresenceTags.length(); i++)
+                        {
+                            if (oldTag.equals(mPresenceTags.get(i)))
+                            {
+                                mPresenceTags.set(i, newTag);
+                            }
+                        }
+                    }
+                }
+        );
+    }
+
+    /**
+     * Dispatch the request contained in "delivery" to its handler.
+     */
+    private void onRequest(String consumerTag, Delivery delivery)
+    {
+        // Get the data.
+        Object request = SerializationUtils.deserialize(delivery.getBody());
+
+        if (request instanceof HistoryRequest)
+        {
+            mDispatcher.submit("history request", Dispatcher.LANE_BULK,
+                    () -> onHistoryRequest(delivery, (HistoryRequest) request));
+        }
+        else if (request instanceof ConversationRequest)
+        {
+            mDispatcher.submit("conversation request", Dispatcher.LANE_BULK,
+                    () -> onConversationRequest(delivery, (ConversationRequest) request));
+        }
+        else if (request instanceof SyncRequest)
+        {
+            mDispatcher.submit("sync request", Dispatcher.LANE_BULK,
+                    () -> onSyncRequest(delivery, (SyncRequest) request));
+        }
+        else if (request instanceof ReplicationRequest)
+        {
+            mDispatcher.submit("replication request", Dispatcher.LANE_BULK,
+                    () -> onReplicationRequest(delivery, (ReplicationRequest) request));
+        }
+        else
+        {
+            submitConnection(mControlChannel, delivery, (superchat.data.Connection) request);
+        }
+    }
+
+    /**
+     * Handle the connection or disconnection contained in "delivery" (received
+     * through "channel") after the previous ones of the same pseudo, so that
+     * they are applied and spread in their arrival order.
+     */
+    private void submitConnection(Channel channel, Delivery delivery,
+                                  superchat.data.Connection connection)
+    {
+        mDispatcher.submit("connection request", Dispatcher.LANE_CONTROL,
+                connection.getName(), () -> onConnection(channel, delivery, connection));
+    }
+
+    /**
+     * Consume the connections/disconnections of each presence shard on its
+     * own channel (exclusively if replicated, as the requests), and publish
+     * the summaries of the shards periodically.
+     */
+    private void consumePresence() throws IOException
+    {
+        mPresenceChannels = new Channel[PRESENCE_SHARDS];
+
+        for (int i = 0; i < PRESENCE_SHARDS; i++)
+        {
+            Channel channel = mConnection.createChannel();
+            mPresenceChannels[i] = channel;
+            mPresenceTags.set(i, channel.basicConsume(QUEUE_PRESENCE + i + "/", false, "",
+                    false, REPLICATION, null, (consumerTag, delivery) ->
+                            submitConnection(channel, delivery,
+                                    SerializationUtils.deserialize(delivery.getBody())),
+                    consumerTag -> { }));
+        }
+
+        // Published even if unchanged on start (e.g. after a take over).
+        Arrays.fill(mSummaryVersions, -1);
+        mSummaries = Executors.newSingleThreadScheduledExecutor(runnable ->
+                {
+                    Thread thread = new Thread(runnable, "presence-summaries");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+        );
+        mSummaries.scheduleWithFixedDelay(this::publishSummaries,
+                0, SUMMARY_PERIOD, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Publish the connected users of each shard changed since its last
+     * summary, for the clients to correct their list (e.g. after missing
+     * some connections or disconnections).
+     */
+    private void publishSummaries()
+    {
+        PresenceRegistry presence = mState.getPresence();
+
+        for (int i = 0; i < PRESENCE_SHARDS; i++)
+        {
+            // Read first: a change made meanwhile is in the next summary.
+            long version = presence.getVersion(i);
+
+            if (version == mSummaryVersions[i])
+            {
+                continue;
+            }
+
+            try
+            {
+                mControlChannel.basicPublish(EXCHANGE_CONNECTIONS, "", null,
+                        SerializationUtils.serialize(new PresenceSummary(i, PRESENCE_SHARDS,
+                                version, presence.namesOf(i))));
+                mSummaryVersions[i] = version;
+            }
+            catch (IOException | AlreadyClosedException e)
+            {
+                System.err.println("Error: cannot publish the presence summary " + e);
+                return;
+            }
+        }
     }
 
     /**
      * Handle the connection or disconnection (contained in "delivery")
      * of a client. In the case of a connection, it's a RPC, and it return true
      * (or false if not correctly done) with the messages, and connected clients lists.
+     * The request is acknowledged, and replied to, through "channel" (the
+     * one which received it).
      */
-    private void onConnection(String consumerTag, Delivery delivery) throws IOException
+    private void onConnection(Channel channel, Delivery delivery,
+                              superchat.data.Connection connection) throws IOException
     {
-        // Get the data.
-        superchat.data.Connection connection = SerializationUtils
-                .deserialize(delivery.getBody());
         // Parse the data.
         if (connection.isIsConnecting())
         {
             boolean response = false;
 
-            if (! mUserNames.contains(connection.getName()))
+            // Can connect with this pseudo? If so add this client to the chat.
+            if (mState.addUser(connection.getName()))
             {
                 System.out.println("Connection success: " + connection.getName());
-                // Can connect with this pseudo, and add this client to the chat.
-                mUserNames.add(connection.getName());
                 // Spread the connection to the other clients.
-                mChannel.basicPublish(EXCHANGE_CONNECTIONS, "", null,
+                channel.basicPublish(EXCHANGE_CONNECTIONS, "", null,
                         delivery.getBody());
                 response = true;
             }
@@ -154,63 +619,566 @@ public class Server
                     .Builder()
                     .correlationId(delivery.getProperties().getCorrelationId())
                     .build();
-            mChannel.basicPublish("", delivery.getProperties().getReplyTo(),
+            channel.basicPublish("", delivery.getProperties().getReplyTo(),
                     replyProps, SerializationUtils.serialize(response));
-            mChannel.basicPublish("", delivery.getProperties().getReplyTo(),
-                    replyProps, SerializationUtils.serialize(mMessages));
-            mChannel.basicPublish("", delivery.getProperties().getReplyTo(),
-                    replyProps, SerializationUtils.serialize(mUserNames));
+            channel.basicPublish("", delivery.getProperties().getReplyTo(),
+                    replyProps, SerializationUtils.serialize(mState.getHistory().toList()));
+            channel.basicPublish("", delivery.getProperties().getReplyTo(),
+                    replyProps, SerializationUtils.serialize(mState.getUserNames()));
         }
         else
         {
             // Disconnecting.
-            mUserNames.remove(connection.getName());
+            mState.removeUser(connection.getName());
             System.out.println("Disconnection: " + connection.getName());
             // Spread the disconnection to the other clients.
-            mChannel.basicPublish(EXCHANGE_CONNECTIONS, "", null,
+            channel.basicPublish(EXCHANGE_CONNECTIONS, "", null,
                     delivery.getBody());
         }
         // Acknowledgment (RPC).
-        mChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-        // RabbitMq consumer worker thread notifies the RPC server owner thread.
-        synchronized (mMonitor)
+        channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+    }
+
+    /**
+     * Reply to the history request (contained in "delivery") of a client
+     * with the asked part of the messages (RPC).
+     */
+    private void onHistoryRequest(Delivery delivery, HistoryRequest request)
+            throws IOException
+    {
+        AMQP.BasicProperties replyProps = new AMQP.BasicProperties
+                .Builder()
+                .correlationId(delivery.getProperties().getCorrelationId())
+                .build();
+        mBulkChannel.basicPublish("", delivery.getProperties().getReplyTo(),
+                replyProps, SerializationUtils.serialize(mState.getHistory()
+                        .after(request.getAfterSeq(), request.getCount())));
+        // Acknowledgment (RPC).
+        mControlChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+    }
+
+    /**
+     * Reply to the conversation request (contained in "delivery") of a client
+     * with the last direct messages of the conversation (RPC).
+     */
+    private void onConversationRequest(Delivery delivery, ConversationRequest request)
+            throws IOException
+    {
+        AMQP.BasicProperties replyProps = new AMQP.BasicProperties
+                .Builder()
+                .correlationId(delivery.getProperties().getCorrelationId())
+                .build();
+        mBulkChannel.basicPublish("", delivery.getProperties().getReplyTo(),
+                replyProps, SerializationUtils.serialize(mState.getDirectHistory()
+                        .last(request.getName(), request.getWith(), request.getCount())));
+        // Acknowledgment (RPC).
+        mControlChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+    }
+
+    /**
+     * Reply to the sync request (contained in "delivery") of a recovered
+     * client with the connected users, and the messages it missed (RPC).
+     */
+    private void onSyncRequest(Delivery delivery, SyncRequest request)
+            throws IOException
+    {
+        AMQP.BasicProperties replyProps = new AMQP.BasicProperties
+                .Builder()
+                .correlationId(delivery.getProperties().getCorrelationId())
+                .build();
+        mBulkChannel.basicPublish("", delivery.getProperties().getReplyTo(),
+                replyProps, SerializationUtils.serialize(mState.getUserNames()));
+        mBulkChannel.basicPublish("", delivery.getProperties().getReplyTo(),
+                replyProps, SerializationUtils.serialize(mState.getHistory()
+                        .since(request.getAfterSeq())));
+        // Acknowledgment (RPC).
+        mControlChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+    }
+
+    /**
+     * Send a snapshot of the state to the standby server, on its request
+     * (contained in "delivery"), the changes after it following.
+     */
+    private void onReplicationRequest(Delivery delivery, ReplicationRequest request)
+            throws IOException
+    {
+        if (mReplicator != null)
         {
-            mMonitor.notify();
+            System.out.println("Replication: snapshot asked from record "
+                    + request.getNextSeq() + ".");
+            mReplicator.sendSnapshot();
         }
+
+        mControlChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
     }
 
     /**
-     * Retrieve the message in "delivery" to save it for the history.
+     * Handle the message in "delivery", and acknowledge it once durable in
+     * the log (or rejected), so that it is delivered again if the server
+     * stops before. The log is synced by groups of messages, and the
+     * message is spread meanwhile.
      */
-    private void onMessage(String consumerTag, Delivery delivery)
+    private void onMessage(String consumerTag, Delivery delivery) throws IOException
+    {
+        long tag = delivery.getEnvelope().getDeliveryTag();
+        ServerReceiveEvent event = new ServerReceiveEvent();
+        event.begin();
+
+        try
+        {
+            event.outcome = handleMessage(delivery);
+        }
+        catch (IOException e)
+        {
+            event.outcome = OUTCOME_FAILED;
+            System.err.println("Error: when saving a message " + e);
+            // Delivered again (not stored, so not dropped as a duplicate).
+            mChannel.basicNack(tag, false, true);
+            return;
+        }
+        finally
+        {
+            traceReceive(event, delivery);
+        }
+
+        if (event.outcome.equals(OUTCOME_REJECTED))
+        {
+            mChannel.basicAck(tag, false);
+            return;
+        }
+        // Also if duplicate (its first delivery may not be durable yet).
+        mCommitter.whenDurable(delivery.getBody().length, isDurable ->
+                {
+                    if (isDurable)
+                    {
+                        mChannel.basicAck(tag, false);
+                    }
+                    else
+                    {
+                        // Delivered again (and dropped as a duplicate).
+                        mChannel.basicNack(tag, false, true);
+                    }
+                }
+        );
+    }
+
+    private static void traceReceive(ServerReceiveEvent event, Delivery delivery)
+    {
+        if (event.shouldCommit())
+        {
+            long sentAt = MessageTrace.sentAtOf(delivery.getProperties());
+            event.traceId = MessageTrace.traceIdOf(delivery.getProperties());
+            event.transit = sentAt >= 0 ? System.currentTimeMillis() - sentAt : 0;
+            event.commit();
+        }
+    }
+
+    /**
+     * Retrieve the message in "delivery" to save it for the history, and
+     * spread it to the clients, unless it's invalid, already received, or
+     * its sender exceeds her/his rate limit. Return what became of it
+     * (one of the "OUTCOME_" constants).
+     */
+    private String handleMessage(Delivery delivery) throws IOException
     {
         // Get the data.
         Message message = SerializationUtils.deserialize(delivery.getBody());
-        mMessages.add(message);
-        System.out.println("Message event: " + message.getName() + "> "
-                + message.getContent());
+
+        if (message.getName() == null || message.getContent() == null
+                || message.getContent().isBlank())
+        {
+            reject(delivery, message, "empty message.");
+            return OUTCOME_REJECTED;
+        }
+
+        if (message.getTime() == null || ! TIME_PATTERN.matcher(message.getTime()).matches())
+        {
+            reject(delivery, message, "invalid time.");
+            return OUTCOME_REJECTED;
+        }
+
+        if (message.getContent().length() > MESSAGE_MAX_LENGTH)
+        {
+            reject(delivery, message, "too long message (more than "
+                    + MESSAGE_MAX_LENGTH + " characters).");
+            return OUTCOME_REJECTED;
+        }
+
+        if (message.getId() != null && mSeenIds.contains(message.getId()))
+        {
+            // Resent by the client: already spread.
+            System.out.println("Message duplicate: " + message.getName());
+            return OUTCOME_DUPLICATE;
+        }
+
+        UserSession user = mState.getUser(message.getName());
+
+        if (user == null)
+        {
+            reject(delivery, message, "you are not connected.");
+            return OUTCOME_REJECTED;
+        }
+
+        if (message.getAttachment() != null
+                && ! mAttachments.exists(message.getAttachment().getHash()))
+        {
+            reject(delivery, message, "the attached file was not received.");
+            return OUTCOME_REJECTED;
+        }
+
+        if (message.isDirect() && mState.getUser(message.getTo()) == null)
+        {
+            reject(delivery, message, message.getTo() + " is not connected.");
+            return OUTCOME_REJECTED;
+        }
+
+        if (! user.getBucket().tryAcquire(System.nanoTime()))
+        {
+            reject(delivery, message, "too many messages, please slow down.");
+            return OUTCOME_REJECTED;
+        }
+
+        HistoryAppendEvent event = new HistoryAppendEvent();
+        event.begin();
+        Message stored = mState.addMessage(message);
+        event.traceId = message.getId();
+        event.seq = stored.getSeq();
+        event.commit();
+
+        // Stored: from now on, acknowledged even if not spread (a redelivery
+        // would be dropped as a duplicate).
+        if (message.getId() != null)
+        {
+            mSeenIds.add(message.getId());
+        }
+
+        spread(stored, 1);
+
+        return OUTCOME_STORED;
     }
 
     /**
-     * Wait and be prepared to consume the next connection request from RPC client.
+     * Spread the stored "message" (with its history position) to the
+     * clients, trying again later if it fails ("attempt" being the number
+     * of this try).
      */
-    @SuppressWarnings("InfiniteLoopStatement")
-    private void waitForConnections()
+    private void spread(Message message, int attempt)
     {
-        while (true)
+        try
         {
-            synchronized (mMonitor)
+            if (message.isDirect())
             {
-                try
-                {
-                    mMonitor.wait();
-                }
-                catch (InterruptedException e)
+                publishDirect(message);
+                System.out.println("Direct message event: " + message.getName() + " > "
+                        + message.getTo());
+            }
+            else
+            {
+                mFanout.publish(message);
+                System.out.println("Message event: " + message.getName() + "> "
+                        + message.getContent());
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot spread the message " + message.getSeq()
+                    + " (try " + attempt + "/" + SPREAD_ATTEMPTS + ") " + e);
+
+            if (attempt < SPREAD_ATTEMPTS)
+            {
+                mDispatcher.submit("message spread", Dispatcher.LANE_BULK,
+                        () -> spread(message, attempt + 1));
+            }
+        }
+    }
+
+    /**
+     * Store the chunk, or handle the request of a file content, contained
+     * in "delivery" (received on the attachment channel).
+     */
+    private void onAttachment(String consumerTag, Delivery delivery) throws IOException
+    {
+        Object request = SerializationUtils.deserialize(delivery.getBody());
+
+        if (request instanceof AttachmentRequest)
+        {
+            // Streamed in its own thread (and channel).
+            mDispatcher.submit("attachment request", Dispatcher.LANE_BULK,
+                    () -> onAttachmentRequest(delivery, (AttachmentRequest) request));
+        }
+        else
+        {
+            onAttachmentChunk(delivery, (AttachmentChunk) request);
+        }
+        // Acknowledgment, so that the next chunks are sent.
+        mAttachmentChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+    }
+
+    /**
+     * Write the chunk of a file (contained in "delivery"), and reply to its
+     * sender once the file is complete, or if it is refused.
+     */
+    private void onAttachmentChunk(Delivery delivery, AttachmentChunk chunk)
+            throws IOException
+    {
+        String replyTo = delivery.getProperties().getReplyTo();
+        Serializable response;
+
+        try
+        {
+            // One upload per reply queue.
+            if (! mAttachments.write(replyTo, chunk))
+            {
+                return;
+            }
+
+            response = true;
+            System.out.println("Attachment stored: " + chunk.getHash());
+        }
+        catch (IOException e)
+        {
+            response = new Rejection(e.getMessage(), null);
+            System.out.println("Attachment rejected: " + e.getMessage());
+        }
+
+        AMQP.BasicProperties replyProps = new AMQP.BasicProperties
+                .Builder()
+                .correlationId(delivery.getProperties().getCorrelationId())
+                .build();
+        mAttachmentChannel.basicPublish("", replyTo, replyProps,
+                SerializationUtils.serialize(response));
+    }
+
+    /**
+     * Stream the content of the requested file (request contained in
+     * "delivery") as chunks, waiting for the broker every few chunks.
+     */
+    private void onAttachmentRequest(Delivery delivery, AttachmentRequest request)
+            throws IOException, TimeoutException, InterruptedException
+    {
+        String replyTo = delivery.getProperties().getReplyTo();
+        AMQP.BasicProperties replyProps = new AMQP.BasicProperties
+                .Builder()
+                .correlationId(delivery.getProperties().getCorrelationId())
+                .build();
+        Channel channel = mConnection.createChannel();
+
+        try
+        {
+            channel.confirmSelect();
+
+            if (! mAttachments.exists(request.getHash()))
+            {
+                channel.basicPublish("", replyTo, replyProps, SerializationUtils.serialize(
+                        new Rejection("unknown file.", null)));
+                return;
+            }
+
+            mAttachments.read(request.getHash(), chunk ->
+                    {
+                        channel.basicPublish("", replyTo, replyProps,
+                                SerializationUtils.serialize(chunk));
+
+                        if (chunk.getIndex() % ATTACHMENT_WINDOW == ATTACHMENT_WINDOW - 1)
+                        {
+                            waitForConfirms(channel);
+                        }
+                    }
+            );
+            waitForConfirms(channel);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Wait for the broker to confirm the chunks published on "channel".
+     */
+    private static void waitForConfirms(Channel channel) throws IOException
+    {
+        try
+        {
+            channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT);
+        }
+        catch (TimeoutException | InterruptedException e)
+        {
+            throw new IOException("chunks not confirmed in time", e);
+        }
+    }
+
+    /**
+     * Send the direct "message" to its recipient and its sender only
+     * (routed by their names).
+     */
+    private void publishDirect(Message message) throws IOException
+    {
+        byte[] body = SerializationUtils.serialize(message);
+        mChannel.basicPublish(EXCHANGE_DIRECT, message.getTo(), null, body);
+
+        if (! message.getTo().equals(message.getName()))
+        {
+            mChannel.basicPublish(EXCHANGE_DIRECT, message.getName(), null, body);
+        }
+    }
+
+    /**
+     * Inform the sender of "message" (contained in "delivery") that it was
+     * not spread because of "reason".
+     */
+    private void reject(Delivery delivery, Message message, String reason)
+            throws IOException
+    {
+        System.out.println("Message rejected: " + message.getName() + " (" + reason + ")");
+
+        if (delivery.getProperties().getReplyTo() != null)
+        {
+            // With the same correlation id, to be routed to the sender session.
+            AMQP.BasicProperties replyProps = new AMQP.BasicProperties
+                    .Builder()
+                    .correlationId(delivery.getProperties().getCorrelationId())
+                    .build();
+            mChannel.basicPublish("", delivery.getProperties().getReplyTo(), replyProps,
+                    SerializationUtils.serialize(new Rejection(reason, message)));
+        }
+    }
+
+    /**
+     * Keep the owner thread until the server is shut down (the requests
+     * are handled by the dispatcher threads).
+     */
+    private void awaitShutdown()
+    {
+        try
+        {
+            mStopped.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop consuming, let the running requests finish, save the state
+     * and close the communication.
+     */
+    private void shutdown()
+    {
+        if (mStandby != null)
+        {
+            mStandby.stop();
+        }
+
+        try
+        {
+            // Not consuming yet if still the standby.
+            if (mConnectionsTag != null)
+            {
+                mControlChannel.basicCancel(mConnectionsTag);
+            }
+            if (mMessagesTag != null)
+            {
+                mChannel.basicCancel(mMessagesTag);
+                mAttachmentChannel.basicCancel(mAttachmentsTag);
+            }
+            if (mPresenceChannels != null)
+            {
+                mSummaries.shutdown();
+
+                for (int i = 0; i < PRESENCE_SHARDS; i++)
                 {
-                    e.printStackTrace();
+                    mPresenceChannels[i].basicCancel(mPresenceTags.get(i));
                 }
             }
         }
+        catch (Exception e)
+        {
+            System.err.println("Error: when cancelling the consumers " + e);
+        }
+
+        mDispatcher.drain(30);
+        // Acknowledge the last messages.
+        mCommitter.stop();
+
+        if (mReplicator != null)
+        {
+            // The last changes.
+            mReplicator.stop();
+        }
+
+        mFanout.stop();
+        mCompactor.stop();
+        mSnapshotter.stop();
+        mState.closeLog();
+        closeRabbitMQ();
+        mConsumerExecutor.shutdown();
+        mStopped.countDown();
+    }
+
+    /**
+     * Open the store of the attached files (exiting if it cannot be).
+     */
+    private void openAttachments()
+    {
+        try
+        {
+            mAttachments.open();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot open the attachment directory " + e);
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Restore the state from the last snapshot and the log after it, or
+     * from the legacy history file on the first launch.
+     */
+    private void retrieveState()
+    {
+        boolean isFirstLaunch = ! mSnapshotter.exists();
+
+        try
+        {
+            mSnapshotter.restore();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot restore the server state " + e);
+            System.exit(-1);
+        }
+
+        if (isFirstLaunch && new File(HISTORY_FILE_PATH).exists())
+        {
+            retrieveMessageHistory();
+            mSnapshotter.snapshot();
+        }
+
+        seedSeenIds();
+    }
+
+    /**
+     * Remember the ids of the last restored messages, to drop them if
+     * resent by the clients (e.g. not acknowledged before a crash).
+     */
+    private void seedSeenIds()
+    {
+        int capacity = mSeenIds.getCapacity();
+        ArrayList<Message> messages = mState.getHistory().last(capacity, 0);
+        messages.addAll(mState.getDirectHistory().last(capacity));
+        messages.sort(Comparator.comparingLong(Message::getSeq));
+
+        for (Message message : messages.subList(Math.max(0, messages.size() - capacity),
+                messages.size()))
+        {
+            if (message.getId() != null)
+            {
+                mSeenIds.add(message.getId());
+            }
+        }
     }
 
     public void retrieveMessageHistory()
@@ -226,7 +1194,11 @@ public class Server
 
             if (messages != null)
             {
-                mMessages = messages;
+                // The reception time is unknown: the retention starts from now.
+                for (Message message : messages)
+                {
+                    mState.addMessage(message);
+                }
             }
 
             stream.close();
@@ -242,24 +1214,6 @@ public class Server
         }
     }
 
-    public void saveMessageHistory()
-    {
-        try
-        {
-            // Open a stream to the file.
-            ObjectOutputStream stream = new ObjectOutputStream(
-                    new FileOutputStream(HISTORY_FILE_PATH));
-            // Then write the messages.
-            stream.writeObject(mMessages);
-
-            stream.close();
-        }
-        catch (Exception e)
-        {
-            System.err.println("Error: cannot save messages in the history file.");
-        }
-    }
-
     private void createHomeDir()
     {
         File homeDir = new File(HOME_DIR_PATH);
@@ -281,27 +1235,6 @@ public class Server
         }
     }
 
-    private void createHistoryFile()
-    {
-        File file = new File(HISTORY_FILE_PATH);
-
-        try
-        {
-            if (! file.exists() && ! file.createNewFile())
-            {
-                System.err.println("Error: cannot create the history file " +
-                        HISTORY_FILE_PATH + ".");
-                System.exit(-1);
-            }
-        }
-        catch (Exception e)
-        {
-            System.err.println("Error: cannot create the history file " +
-                    HISTORY_FILE_PATH + ".");
-            System.exit(-1);
-        }
-    }
-
     private void closeRabbitMQ()
     {
         try
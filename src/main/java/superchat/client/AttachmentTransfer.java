@@ -0,0 +1,256 @@
+package superchat.client;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import org.apache.commons.lang3.SerializationUtils;
+import superchat.data.Attachment;
+import superchat.data.AttachmentChunk;
+import superchat.data.AttachmentRequest;
+import superchat.data.Rejection;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Upload and download the files attached to the messages, as streams of
+ * fixed-size chunks on a channel of their own (so that a large file never
+ * blocks the messages). At most a few chunks are in flight: the upload
+ * waits for the broker confirms, and the download for the consumption.
+ */
+public class AttachmentTransfer implements Closeable
+{
+    // /!\ The same as Server.java; needs to be modified in both
+    // files if modified.
+    private final static String QUEUE_ATTACHMENTS =
+            "rabbitmq://server/queue/attachments/";
+
+    // Size of the chunks sent (in bytes), the same as the server.
+    private final static int CHUNK_SIZE = 64 * 1024;
+    // Maximum number of chunks in flight.
+    private final static int WINDOW = 16;
+    // Maximum time to wait for the broker or the server (in seconds).
+    private final static int TIMEOUT = 30;
+
+    private final Channel mChannel;
+
+    /**
+     * Transfer on "channel" (closed with this transfer).
+     */
+    public AttachmentTransfer(Channel channel) throws IOException
+    {
+        mChannel = channel;
+        mChannel.confirmSelect();
+        mChannel.basicQos(WINDOW);
+    }
+
+    /**
+     * Send the content of "file" to the server, and return its reference.
+     */
+    public Attachment upload(Path file)
+            throws IOException, TimeoutException, InterruptedException
+    {
+        String hash = hashOf(file);
+        long size = Files.size(file);
+        // Where the server replies once the file stored.
+        String replyQueue = mChannel.queueDeclare().getQueue();
+        BlockingQueue<Object> response = new ArrayBlockingQueue<>(1);
+        String tag = mChannel.basicConsume(replyQueue, true,
+                (consumerTag, delivery) -> response.offer(
+                        SerializationUtils.deserialize(delivery.getBody())),
+                consumerTag -> { });
+        AMQP.BasicProperties props = new AMQP.BasicProperties
+                .Builder()
+                .replyTo(replyQueue)
+                .build();
+
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file)))
+        {
+            byte[] buffer = stream.readNBytes(CHUNK_SIZE);
+
+            for (int index = 0; ; index++)
+            {
+                byte[] next = buffer.length < CHUNK_SIZE ? new byte[0] : stream.readNBytes(CHUNK_SIZE);
+                boolean isLast = next.length == 0;
+                mChannel.basicPublish("", QUEUE_ATTACHMENTS, props, SerializationUtils.serialize(
+                        new AttachmentChunk(hash, index, isLast, buffer)));
+                // Not more than the window in flight.
+                if (isLast || index % WINDOW == WINDOW - 1)
+                {
+                    mChannel.waitForConfirmsOrDie(TimeUnit.SECONDS.toMillis(TIMEOUT));
+                }
+
+                if (isLast)
+                {
+                    break;
+                }
+
+                buffer = next;
+            }
+
+            Object result = response.poll(TIMEOUT, TimeUnit.SECONDS);
+
+            if (result instanceof Rejection)
+            {
+                throw new IOException(((Rejection) result).getReason());
+            }
+            else if (result == null)
+            {
+                throw new TimeoutException("file not stored in time");
+            }
+
+            return new Attachment(hash, file.getFileName().toString(), size);
+        }
+        finally
+        {
+            mChannel.basicCancel(tag);
+            mChannel.queueDelete(replyQueue);
+        }
+    }
+
+    /**
+     * Retrieve the content of "attachment" from the server in "target".
+     */
+    public void download(Attachment attachment, Path target)
+            throws IOException, TimeoutException, InterruptedException
+    {
+        Path temporary = Files.createTempFile(target.toAbsolutePath().getParent(),
+                attachment.getHash(), ".part");
+        // Where the server sends the chunks (acknowledged once written).
+        String replyQueue = mChannel.queueDeclare().getQueue();
+        BlockingQueue<Object> result = new ArrayBlockingQueue<>(1);
+        MessageDigest digest = newDigest();
+
+        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(temporary)))
+        {
+            String tag = mChannel.basicConsume(replyQueue, false,
+                    (consumerTag, delivery) ->
+                    {
+                        Object payload = SerializationUtils.deserialize(delivery.getBody());
+
+                        if (payload instanceof AttachmentChunk)
+                        {
+                            AttachmentChunk chunk = (AttachmentChunk) payload;
+                            stream.write(chunk.getData());
+                            digest.update(chunk.getData());
+
+                            if (chunk.isLast())
+                            {
+                                result.offer(true);
+                            }
+                        }
+                        else
+                        {
+                            result.offer(payload);
+                        }
+
+                        mChannel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                    },
+                    consumerTag -> { });
+
+            try
+            {
+                AMQP.BasicProperties props = new AMQP.BasicProperties
+                        .Builder()
+                        .replyTo(replyQueue)
+                        .build();
+                mChannel.basicPublish("", QUEUE_ATTACHMENTS, props, SerializationUtils.serialize(
+                        new AttachmentRequest(attachment.getHash())));
+                // Long enough for the chunks to keep coming.
+                Object done = result.poll(TIMEOUT + attachment.getSize() / CHUNK_SIZE,
+                        TimeUnit.SECONDS);
+
+                if (done instanceof Rejection)
+                {
+                    throw new IOException(((Rejection) done).getReason());
+                }
+                else if (done == null)
+                {
+                    throw new TimeoutException("file not received in time");
+                }
+            }
+            finally
+            {
+                mChannel.basicCancel(tag);
+                mChannel.queueDelete(replyQueue);
+            }
+        }
+        catch (IOException | TimeoutException | InterruptedException e)
+        {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        if (! toHex(digest.digest()).equals(attachment.getHash()))
+        {
+            Files.deleteIfExists(temporary);
+            throw new IOException("received content not matching the file");
+        }
+
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            mChannel.close();
+        }
+        catch (TimeoutException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Return the SHA-256 hash of the content of "file" (lowercase hexadecimal).
+     */
+    private static String hashOf(Path file) throws IOException
+    {
+        MessageDigest digest = newDigest();
+
+        try (InputStream stream = new DigestInputStream(
+                new BufferedInputStream(Files.newInputStream(file)), digest))
+        {
+            stream.transferTo(OutputStream.nullOutputStream());
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Always available.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes)
+        {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,421 @@
+package superchat.client;
+
+import com.rabbitmq.client.*;
+import com.rabbitmq.client.impl.recovery.AutorecoveringConnection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Pool of connections to the broker shared by client sessions. Each session
+ * gets its own channel (to publish), while each connection has a single
+ * consumer which receives the messages, connections/disconnections, signals
+ * and replies once (the connections/disconnections and replies on a channel
+ * of their own, so never waiting behind the messages), and hands them to
+ * its sessions (the replies according to
+ * their correlation id, "<session id>/..." or "<session id>", and the direct
+ * messages according to their recipient, bound by the session).
+ * A message delivery is acked once all the sessions have displayed (or
+ * skipped) it. The connections recover automatically after a broker
+ * restart, then the sessions are informed to resync their state.
+ * Configured with the "superchat.client.sessionsPerConnection" system property.
+ */
+public class ConnectionManager
+{
+    // /!\ The same as Server.java; needs to be modified in both
+    // files if modified.
+    private final static String EXCHANGE_MESSAGES =
+            "rabbitmq://server/exchange/messages/";
+    private final static String EXCHANGE_CONNECTIONS =
+            "rabbitmq://server/exchange/connections_disconnections/";
+    private final static String EXCHANGE_SIGNALS =
+            "rabbitmq://server/exchange/signals/";
+    private final static String EXCHANGE_DIRECT =
+            "rabbitmq://server/exchange/direct/";
+
+    // Maximum number of signals waiting (the oldest ones being dropped),
+    // and time after which a signal is dropped (in ms).
+    private final static int SIGNALS_MAX_LENGTH = 64;
+    private final static int SIGNALS_TTL = 5000;
+
+    private final ConnectionFactory mFactory;
+    private final int mSessionsPerConnection;
+    private final int mPrefetch;
+    private final List<SharedConnection> mConnections;
+
+    /**
+     * Create a pool of connections to "host", each one receiving at most
+     * "prefetch" unacknowledged messages.
+     */
+    public ConnectionManager(String host, int prefetch)
+    {
+        mFactory = new ConnectionFactory();
+        mFactory.setHost(host);
+        // Reconnect (with the queues, bindings and consumer) after a
+        // broker restart, waiting longer between each attempt.
+        mFactory.setAutomaticRecoveryEnabled(true);
+        mFactory.setTopologyRecoveryEnabled(true);
+        mFactory.setRecoveryDelayHandler(new RecoveryDelayHandler.ExponentialBackoffDelayHandler());
+        mSessionsPerConnection = Integer.getInteger(
+                "superchat.client.sessionsPerConnection", 500);
+        mPrefetch = prefetch;
+        mConnections = new ArrayList<>();
+    }
+
+    /**
+     * Open a session informing "handler", on a connection with room left
+     * (or a new one).
+     */
+    public synchronized Session open(SessionHandler handler)
+            throws IOException, TimeoutException
+    {
+        SharedConnection connection = null;
+
+        for (SharedConnection candidate : mConnections)
+        {
+            if (candidate.mSessions.size() < mSessionsPerConnection)
+            {
+                connection = candidate;
+                break;
+            }
+        }
+
+        if (connection == null)
+        {
+            connection = new SharedConnection(mFactory.newConnection());
+            mConnections.add(connection);
+        }
+
+        return connection.open(handler);
+    }
+
+    /**
+     * Close all the connections (and so their sessions).
+     */
+    public synchronized void close()
+    {
+        for (SharedConnection connection : mConnections)
+        {
+            try
+            {
+                connection.mConnection.close();
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error: when closing rabbitMQ connection" + e);
+            }
+        }
+
+        mConnections.clear();
+    }
+
+    /**
+     * Receive the deliveries of a session.
+     */
+    public interface SessionHandler
+    {
+        /**
+         * A message (or batch of messages) publish, "ack" to be called
+         * once displayed or skipped.
+         */
+        void onMessage(Delivery delivery, InboundQueue.Acknowledgment ack) throws IOException;
+
+        void onPresence(Delivery delivery);
+
+        void onSignal(Delivery delivery);
+
+        /**
+         * A direct message to (or from) the user of the session.
+         */
+        void onDirect(Delivery delivery);
+
+        void onReply(Delivery delivery);
+
+        /**
+         * Called once the connection was recovered (after "millis"), the
+         * deliveries sent meanwhile being lost.
+         */
+        void onRecovered(long millis);
+    }
+
+    /**
+     * A session: its own channel, and where to ask the replies.
+     */
+    public static class Session
+    {
+        private final SharedConnection mConnection;
+        private final String mId;
+        private final Channel mChannel;
+        // User name the direct messages are received for, or null.
+        private volatile String mDirectName;
+
+        private Session(SharedConnection connection, String id, Channel channel)
+        {
+            mConnection = connection;
+            mId = id;
+            mChannel = channel;
+        }
+
+        public String getId()
+        {
+            return mId;
+        }
+
+        public Channel getChannel()
+        {
+            return mChannel;
+        }
+
+        /**
+         * Return the queue to give as "reply to" of the requests, with
+         * a correlation id starting with "getId()".
+         */
+        public String getReplyQueue()
+        {
+            return mConnection.mReplyQueue;
+        }
+
+        /**
+         * Return a new channel on the connection of the session (e.g. for
+         * the large transfers), to be closed by the caller.
+         */
+        public Channel createChannel() throws IOException
+        {
+            return mConnection.mConnection.createChannel();
+        }
+
+        /**
+         * Receive the direct messages to the user "name" (once connected).
+         */
+        public void subscribeDirect(String name) throws IOException
+        {
+            mDirectName = name;
+            mConnection.mDirectSessions.put(name, mId);
+            mConnection.mChannel.queueBind(mConnection.mDirectQueue, EXCHANGE_DIRECT, name);
+        }
+
+        /**
+         * Stop receiving the direct messages to the user "name".
+         */
+        public void unsubscribeDirect(String name) throws IOException
+        {
+            mDirectName = null;
+            mConnection.mDirectSessions.remove(name, mId);
+            mConnection.mChannel.queueUnbind(mConnection.mDirectQueue, EXCHANGE_DIRECT, name);
+        }
+
+        public void close() throws IOException, TimeoutException
+        {
+            mConnection.mSessions.remove(mId);
+
+            if (mDirectName != null && mConnection.mChannel.isOpen())
+            {
+                unsubscribeDirect(mDirectName);
+            }
+
+            if (mChannel.isOpen())
+            {
+                mChannel.close();
+            }
+        }
+    }
+
+    /**
+     * A connection, with the single consumer of its sessions.
+     */
+    private class SharedConnection
+    {
+        private final Connection mConnection;
+        // Receives the messages, signals and direct messages, and the
+        // connections/disconnections and replies (each with its thread).
+        private final Channel mChannel;
+        private final Channel mControlChannel;
+        // Renamed by the broker on recovery.
+        private volatile String mReplyQueue;
+        private final Map<String, SessionHandler> mSessions;
+        // Receives the direct messages to the users of the sessions (bound
+        // with their names; renamed by the broker on recovery), and the
+        // session ids by user name.
+        private volatile String mDirectQueue;
+        private final Map<String, String> mDirectSessions;
+        // When the connection was lost (to measure its recovery).
+        private volatile long mLostTime;
+
+        SharedConnection(Connection connection) throws IOException
+        {
+            mConnection = connection;
+            mChannel = connection.createChannel();
+            mChannel.basicQos(mPrefetch);
+            mControlChannel = connection.createChannel();
+            mSessions = new ConcurrentHashMap<>();
+            mDirectSessions = new ConcurrentHashMap<>();
+
+            Consumer consumer = newConsumer(mChannel);
+            Consumer controlConsumer = newConsumer(mControlChannel);
+            // Get a queue to receive the messages from the server
+            // (acknowledged once displayed by all the sessions).
+            String queueName1 = mChannel.queueDeclare().getQueue();
+            mChannel.queueBind(queueName1, EXCHANGE_MESSAGES, "");
+            mChannel.basicConsume(queueName1, false, consumer);
+            // Get a queue to receive the connections/disconnections from the server.
+            String queueName2 = mControlChannel.queueDeclare().getQueue();
+            mControlChannel.queueBind(queueName2, EXCHANGE_CONNECTIONS, "");
+            mControlChannel.basicConsume(queueName2, true, controlConsumer);
+            // Get a queue to receive the signals from the clients (lossy: short,
+            // and the outdated ones dropped).
+            Map<String, Object> arguments = Map.of(
+                    "x-max-length", SIGNALS_MAX_LENGTH,
+                    "x-overflow", "drop-head",
+                    "x-message-ttl", SIGNALS_TTL);
+            String queueName3 = mChannel.queueDeclare("", false, true, true,
+                    arguments).getQueue();
+            mChannel.queueBind(queueName3, EXCHANGE_SIGNALS, "");
+            mChannel.basicConsume(queueName3, true, consumer);
+            // Get a queue to receive the direct messages to the sessions users.
+            mDirectQueue = mChannel.queueDeclare().getQueue();
+            mChannel.basicConsume(mDirectQueue, true, consumer);
+            // Get a queue to receive the replies (RPC and rejections) to the sessions.
+            mReplyQueue = mControlChannel.queueDeclare().getQueue();
+            mControlChannel.basicConsume(mReplyQueue, true, controlConsumer);
+
+            watchRecovery((AutorecoveringConnection) connection);
+        }
+
+        private Consumer newConsumer(Channel channel)
+        {
+            return new DefaultConsumer(channel)
+            {
+                @Override
+                public void handleDelivery(String consumerTag, Envelope envelope,
+                        AMQP.BasicProperties properties, byte[] body) throws IOException
+                {
+                    dispatch(new Delivery(envelope, properties, body));
+                }
+            };
+        }
+
+        /**
+         * Follow the reply and direct queues renamed on recovery, and inform
+         * the sessions of the time taken to recover.
+         */
+        private void watchRecovery(AutorecoveringConnection connection)
+        {
+            connection.addShutdownListener(cause ->
+                    {
+                        if (! cause.isInitiatedByApplication())
+                        {
+                            mLostTime = System.nanoTime();
+                            System.err.println("Error: connection to the broker lost, recovering...");
+                        }
+                    }
+            );
+            connection.addQueueRecoveryListener((oldName, newName) ->
+                    {
+                        if (oldName.equals(mReplyQueue))
+                        {
+                            mReplyQueue = newName;
+                        }
+                        else if (oldName.equals(mDirectQueue))
+                        {
+                            mDirectQueue = newName;
+                        }
+                    }
+            );
+            connection.addRecoveryListener(new RecoveryListener()
+                    {
+                        @Override
+                        public void handleRecovery(Recoverable recoverable)
+                        {
+                            long elapsed = (System.nanoTime() - mLostTime) / 1_000_000;
+                            System.out.println("Recovery: connection recovered in "
+                                    + elapsed + " ms.");
+                            mSessions.values().forEach(handler -> handler.onRecovered(elapsed));
+                        }
+
+                        @Override
+                        public void handleRecoveryStarted(Recoverable recoverable)
+                        {
+                        }
+                    }
+            );
+        }
+
+        Session open(SessionHandler handler) throws IOException
+        {
+            String id = UUID.randomUUID().toString();
+            mSessions.put(id, handler);
+
+            return new Session(this, id, mConnection.createChannel());
+        }
+
+        private void dispatch(Delivery delivery) throws IOException
+        {
+            String exchange = delivery.getEnvelope().getExchange();
+
+            if (EXCHANGE_MESSAGES.equals(exchange))
+            {
+                long tag = delivery.getEnvelope().getDeliveryTag();
+                List<SessionHandler> handlers = new ArrayList<>(mSessions.values());
+                // Acked by the last one done with it (the sessions, or this dispatch).
+                AtomicInteger remaining = new AtomicInteger(handlers.size() + 1);
+                InboundQueue.Acknowledgment ack = () ->
+                        {
+                            if (remaining.decrementAndGet() == 0)
+                            {
+                                mChannel.basicAck(tag, false);
+                            }
+                        };
+
+                for (SessionHandler handler : handlers)
+                {
+                    handler.onMessage(delivery, ack);
+                }
+
+                ack.ack();
+            }
+            else if (EXCHANGE_CONNECTIONS.equals(exchange))
+            {
+                mSessions.values().forEach(handler -> handler.onPresence(delivery));
+            }
+            else if (EXCHANGE_SIGNALS.equals(exchange))
+            {
+                mSessions.values().forEach(handler -> handler.onSignal(delivery));
+            }
+            else if (EXCHANGE_DIRECT.equals(exchange))
+            {
+                String id = mDirectSessions.get(delivery.getEnvelope().getRoutingKey());
+                SessionHandler handler = id != null ? mSessions.get(id) : null;
+
+                if (handler != null)
+                {
+                    handler.onDirect(delivery);
+                }
+            }
+            else
+            {
+                String correlationId = delivery.getProperties().getCorrelationId();
+
+                if (correlationId == null)
+                {
+                    return;
+                }
+
+                int end = correlationId.indexOf('/');
+                SessionHandler handler = mSessions.get(end < 0 ?
+                        correlationId : correlationId.substring(0, end));
+
+                if (handler != null)
+                {
+                    handler.onReply(delivery);
+                }
+            }
+        }
+    }
+}
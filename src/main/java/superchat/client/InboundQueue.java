@@ -0,0 +1,174 @@
+package superchat.client;
+
+import com.rabbitmq.client.Delivery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Bounded buffer between a RabbitMQ consumer (with manual acks) and a
+ * slower renderer. The deliveries are acked once rendered, so the broker
+ * stops sending when the channel prefetch is reached. If the renderer lags
+ * so much that the buffer is full, the buffered deliveries are skipped
+ * (and acked) at once, and only their number is reported.
+ */
+public class InboundQueue
+{
+    private final BlockingQueue<Entry> mQueue;
+    private final int mCapacity;
+    private final Renderer mRenderer;
+    private final Thread mThread;
+    // Messages skipped because the buffer was full on reception.
+    private int mRejected;
+
+    public InboundQueue(int capacity, Renderer renderer)
+    {
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        mCapacity = capacity;
+        mRenderer = renderer;
+        mThread = new Thread(this::pump, "inbound-queue");
+        mThread.setDaemon(true);
+    }
+
+    public void start()
+    {
+        mThread.start();
+    }
+
+    /**
+     * Stop rendering, and ack the waiting deliveries.
+     */
+    public void stop() throws IOException
+    {
+        mThread.interrupt();
+
+        List<Entry> backlog = new ArrayList<>();
+        mQueue.drainTo(backlog);
+
+        for (Entry entry : backlog)
+        {
+            entry.mAck.ack();
+        }
+    }
+
+    /**
+     * Buffer the "delivery" (called by the consumer thread), "ack" being
+     * called once rendered or skipped.
+     */
+    public void offer(Delivery delivery, Acknowledgment ack) throws IOException
+    {
+        if (! mQueue.offer(new Entry(delivery, ack)))
+        {
+            // Only if the prefetch is greater than the capacity.
+            synchronized (this)
+            {
+                mRejected += mRenderer.countOf(delivery);
+            }
+
+            ack.ack();
+        }
+    }
+
+    /**
+     * Return the number of deliveries waiting to be rendered.
+     */
+    public int size()
+    {
+        return mQueue.size();
+    }
+
+    private void pump()
+    {
+        List<Entry> backlog = new ArrayList<>();
+
+        while (! Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                Entry entry = mQueue.take();
+                int skipped;
+
+                synchronized (this)
+                {
+                    skipped = mRejected;
+                    mRejected = 0;
+                }
+
+                if (mQueue.size() >= mCapacity - 1)
+                {
+                    // Too late to render all of them: skip the backlog.
+                    backlog.add(entry);
+                    mQueue.drainTo(backlog);
+
+                    for (Entry skippedEntry : backlog)
+                    {
+                        skipped += mRenderer.countOf(skippedEntry.mDelivery);
+                        skippedEntry.mAck.ack();
+                    }
+
+                    backlog.clear();
+                    mRenderer.onSkipped(skipped);
+                    continue;
+                }
+
+                if (skipped > 0)
+                {
+                    mRenderer.onSkipped(skipped);
+                }
+
+                mRenderer.render(entry.mDelivery);
+                entry.mAck.ack();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (Exception e)
+            {
+                System.err.println("Error: when rendering a message " + e);
+            }
+        }
+    }
+
+    /**
+     * Display the deliveries.
+     */
+    public interface Renderer
+    {
+        void render(Delivery delivery) throws Exception;
+
+        /**
+         * Return the number of messages in the "delivery".
+         */
+        int countOf(Delivery delivery);
+
+        /**
+         * Called when "count" messages were skipped.
+         */
+        void onSkipped(int count) throws Exception;
+    }
+
+    /**
+     * Acknowledge a delivery to the broker.
+     */
+    public interface Acknowledgment
+    {
+        void ack() throws IOException;
+    }
+
+    private static class Entry
+    {
+        final Delivery mDelivery;
+        final Acknowledgment mAck;
+
+        Entry(Delivery delivery, Acknowledgment ack)
+        {
+            mDelivery = delivery;
+            mAck = ack;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package superchat.data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * Contain the reference of a file stored by the server (by the SHA-256
+ * hash of its content), attached to a message.
+ */
+public class Attachment implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = -1284471093361578207L;
+
+    // SHA-256 hash of the content (lowercase hexadecimal).
+    private final String mHash;
+    // File name given by the sender.
+    private final String mFileName;
+    // Size of the content (in bytes).
+    private final long mSize;
+
+    public Attachment(String hash, String fileName, long size)
+    {
+        mHash = hash;
+        mFileName = fileName;
+        mSize = size;
+    }
+
+    public String getHash()
+    {
+        return mHash;
+    }
+
+    public String getFileName()
+    {
+        return mFileName;
+    }
+
+    public long getSize()
+    {
+        return mSize;
+    }
+}
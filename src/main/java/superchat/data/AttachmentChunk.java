@@ -0,0 +1,51 @@
+package superchat.data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * Contain a part of a file being uploaded to (or downloaded from) the
+ * server, the file content being sent as a stream of fixed-size chunks.
+ */
+public class AttachmentChunk implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = 4071825537460986372L;
+
+    // SHA-256 hash of the whole content (lowercase hexadecimal).
+    private final String mHash;
+    // Position of the chunk in the file (from 0).
+    private final int mIndex;
+    // True if it's the last chunk of the file.
+    private final boolean mIsLast;
+    private final byte[] mData;
+
+    public AttachmentChunk(String hash, int index, boolean isLast, byte[] data)
+    {
+        mHash = hash;
+        mIndex = index;
+        mIsLast = isLast;
+        mData = data;
+    }
+
+    public String getHash()
+    {
+        return mHash;
+    }
+
+    public int getIndex()
+    {
+        return mIndex;
+    }
+
+    public boolean isLast()
+    {
+        return mIsLast;
+    }
+
+    public byte[] getData()
+    {
+        return mData;
+    }
+}
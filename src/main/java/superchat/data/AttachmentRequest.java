@@ -0,0 +1,28 @@
+package superchat.data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * Contain a request of the content of a stored file (streamed back as
+ * chunks), by the SHA-256 hash of its content.
+ */
+public class AttachmentRequest implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = -7740418361956203218L;
+
+    // SHA-256 hash of the content (lowercase hexadecimal).
+    private final String mHash;
+
+    public AttachmentRequest(String hash)
+    {
+        mHash = hash;
+    }
+
+    public String getHash()
+    {
+        return mHash;
+    }
+}
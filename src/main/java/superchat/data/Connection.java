@@ -24,6 +24,15 @@ public class Connection implements Serializable
         mName = name;
     }
 
+    /**
+     * Return the presence shard of the user "name" among "shards" (the
+     * server part which reserves her/his pseudo).
+     */
+    public static int shardOf(String name, int shards)
+    {
+        return Math.floorMod(name.hashCode(), shards);
+    }
+
     public boolean isIsConnecting()
     {
         return mIsConnecting;
@@ -0,0 +1,44 @@
+package superchat.data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * Contain a request of the "count" last direct messages between the users
+ * "name" and "with".
+ */
+public class ConversationRequest implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = 8814350269316270478L;
+
+    // Requesting user name.
+    private final String mName;
+    // Other user name.
+    private final String mWith;
+    // Number of messages wanted.
+    private final int mCount;
+
+    public ConversationRequest(String name, String with, int count)
+    {
+        mName = name;
+        mWith = with;
+        mCount = count;
+    }
+
+    public String getName()
+    {
+        return mName;
+    }
+
+    public String getWith()
+    {
+        return mWith;
+    }
+
+    public int getCount()
+    {
+        return mCount;
+    }
+}
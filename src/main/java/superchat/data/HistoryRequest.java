@@ -0,0 +1,36 @@
+package superchat.data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * Contain a request of a part of the message history: the "count" first
+ * messages after the "afterSeq" history position.
+ */
+public class HistoryRequest implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = 2471503905238652734L;
+
+    // History position after which the messages are wanted.
+    private final long mAfterSeq;
+    // Number of messages wanted.
+    private final int mCount;
+
+    public HistoryRequest(long afterSeq, int count)
+    {
+        mAfterSeq = afterSeq;
+        mCount = count;
+    }
+
+    public long getAfterSeq()
+    {
+        return mAfterSeq;
+    }
+
+    public int getCount()
+    {
+        return mCount;
+    }
+}
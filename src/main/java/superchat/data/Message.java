@@ -5,7 +5,9 @@ import java.io.Serializable;
 
 
 /**
- * Contain a user message.
+ * Contain a user message, to all the users, or to one of them (direct message),
+ * with possibly an attached file (only its reference, the content being
+ * transferred apart).
  */
 public class Message implements Serializable
 {
@@ -18,12 +20,60 @@ public class Message implements Serializable
     private final String mContent;
     // Time when sent.
     private final String mTime;
+    // Unique id given by the sender (so that the server can drop
+    // the duplicates when resent), or null.
+    private final String mId;
+    // Position in the history given by the server (0 if not yet known).
+    private final long mSeq;
+    // Recipient name of a direct message, or null if sent to all the users.
+    private final String mTo;
+    // Attached file, or null.
+    private final Attachment mAttachment;
 
     public Message(String name, String content, String time)
+    {
+        this(name, content, time, null, null, null, 0);
+    }
+
+    public Message(String name, String content, String time, String id)
+    {
+        this(name, content, time, id, null, null, 0);
+    }
+
+    /**
+     * Create a direct message, to the user named "to" only.
+     */
+    public Message(String name, String content, String time, String id, String to)
+    {
+        this(name, content, time, id, to, null, 0);
+    }
+
+    private Message(String name, String content, String time, String id, String to,
+            Attachment attachment, long seq)
     {
         mName = name;
         mContent = content;
         mTime = time;
+        mId = id;
+        mTo = to;
+        mAttachment = attachment;
+        mSeq = seq;
+    }
+
+    /**
+     * Return a copy of this message at the position "seq" in the history.
+     */
+    public Message withSeq(long seq)
+    {
+        return new Message(mName, mContent, mTime, mId, mTo, mAttachment, seq);
+    }
+
+    /**
+     * Return a copy of this message with the file "attachment".
+     */
+    public Message withAttachment(Attachment attachment)
+    {
+        return new Message(mName, mContent, mTime, mId, mTo, attachment, mSeq);
     }
 
     public String getName()
@@ -40,4 +90,29 @@ public class Message implements Serializable
     {
         return mTime;
     }
-}
\ No newline at end of file
+
+    public String getId()
+    {
+        return mId;
+    }
+
+    public long getSeq()
+    {
+        return mSeq;
+    }
+
+    public String getTo()
+    {
+        return mTo;
+    }
+
+    public boolean isDirect()
+    {
+        return mTo != null;
+    }
+
+    public Attachment getAttachment()
+    {
+        return mAttachment;
+    }
+}
@@ -0,0 +1,52 @@
+package superchat.data;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+
+/**
+ * Contain the connected users of a presence shard (see "Connection.shardOf"),
+ * published periodically by the server when they changed, so that the
+ * clients can correct their user list.
+ */
+public class PresenceSummary implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = -2411709063525360143L;
+
+    private final int mShard;
+    // Number of shards.
+    private final int mShards;
+    // Number of changes of the shard (increasing).
+    private final long mVersion;
+    private final ArrayList<String> mNames;
+
+    public PresenceSummary(int shard, int shards, long version, ArrayList<String> names)
+    {
+        mShard = shard;
+        mShards = shards;
+        mVersion = version;
+        mNames = names;
+    }
+
+    public int getShard()
+    {
+        return mShard;
+    }
+
+    public int getShards()
+    {
+        return mShards;
+    }
+
+    public long getVersion()
+    {
+        return mVersion;
+    }
+
+    public ArrayList<String> getNames()
+    {
+        return mNames;
+    }
+}
@@ -0,0 +1,35 @@
+package superchat.data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * Contain the reason why the server refused to spread a user message.
+ */
+public class Rejection implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = 5318867247213072911L;
+
+    // Why.
+    private final String mReason;
+    // The refused message.
+    private final Message mMessage;
+
+    public Rejection(String reason, Message message)
+    {
+        mReason = reason;
+        mMessage = message;
+    }
+
+    public String getReason()
+    {
+        return mReason;
+    }
+
+    public Message getMessage()
+    {
+        return mMessage;
+    }
+}
@@ -0,0 +1,28 @@
+package superchat.data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * Contain the request of a standby server to the primary one, for a
+ * snapshot of its state (followed by the changes after it).
+ */
+public class ReplicationRequest implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = 2318440917253365810L;
+
+    // Log sequence number of the next change the standby expects.
+    private final long mNextSeq;
+
+    public ReplicationRequest(long nextSeq)
+    {
+        mNextSeq = nextSeq;
+    }
+
+    public long getNextSeq()
+    {
+        return mNextSeq;
+    }
+}
@@ -0,0 +1,48 @@
+package superchat.data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * Contain an ephemeral signal of a user: she/he is typing, or has read the
+ * messages up to a history position. Exchanged between the clients only
+ * (never kept in the history), and lost if not received in time.
+ */
+public class Signal implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = -3308216751940625147L;
+
+    public static final int TYPE_TYPING = 0;
+    public static final int TYPE_READ = 1;
+
+    // TYPE_TYPING or TYPE_READ.
+    private final int mType;
+    // User name.
+    private final String mName;
+    // History position of the last message read (TYPE_READ only).
+    private final long mSeq;
+
+    public Signal(int type, String name, long seq)
+    {
+        mType = type;
+        mName = name;
+        mSeq = seq;
+    }
+
+    public int getType()
+    {
+        return mType;
+    }
+
+    public String getName()
+    {
+        return mName;
+    }
+
+    public long getSeq()
+    {
+        return mSeq;
+    }
+}
@@ -0,0 +1,29 @@
+package superchat.data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * Contain a request of the state missed by a client (e.g. while its
+ * connection was recovering): the connected users, and the messages
+ * after the "afterSeq" history position.
+ */
+public class SyncRequest implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = 6193028475561274931L;
+
+    // History position of the last message received.
+    private final long mAfterSeq;
+
+    public SyncRequest(long afterSeq)
+    {
+        mAfterSeq = afterSeq;
+    }
+
+    public long getAfterSeq()
+    {
+        return mAfterSeq;
+    }
+}
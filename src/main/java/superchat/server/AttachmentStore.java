@@ -0,0 +1,241 @@
+package superchat.server;
+
+import superchat.data.AttachmentChunk;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+
+/**
+ * The files attached to the messages, stored on disk by the SHA-256 hash
+ * of their content (so a file sent several times is stored once).
+ * A file is received as a stream of chunks in a temporary file, and only
+ * renamed to its hash once complete and checked. Configured with the
+ * "superchat.attachment.maxBytes" system property.
+ */
+public class AttachmentStore
+{
+    // Size of the chunks sent (in bytes).
+    public final static int CHUNK_SIZE = 64 * 1024;
+
+    private final static Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path mDirectory;
+    private final Path mTemporaryDirectory;
+    private final long mMaxBytes;
+    // Uploads in progress, by uploader (one at a time each).
+    private final Map<String, Upload> mUploads;
+
+    public AttachmentStore(Path directory)
+    {
+        mDirectory = directory;
+        mTemporaryDirectory = directory.resolve("tmp");
+        mMaxBytes = Long.getLong("superchat.attachment.maxBytes", 50L * 1024 * 1024);
+        mUploads = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Create the directories, and delete the uploads interrupted by the
+     * last stop.
+     */
+    public void open() throws IOException
+    {
+        Files.createDirectories(mTemporaryDirectory);
+
+        try (var files = Files.list(mTemporaryDirectory))
+        {
+            for (Path file : (Iterable<Path>) files::iterator)
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Return true if the file of hash "hash" is stored.
+     */
+    public boolean exists(String hash)
+    {
+        return isValid(hash) && Files.exists(mDirectory.resolve(hash));
+    }
+
+    /**
+     * Write the "chunk" of the file sent by "uploader", and return true once
+     * the file is complete and stored (false if not yet complete).
+     * Throw if the chunk is unexpected, the file is too large, or its content
+     * doesn't match its hash (the upload being then dropped).
+     */
+    public boolean write(String uploader, AttachmentChunk chunk) throws IOException
+    {
+        if (! isValid(chunk.getHash()))
+        {
+            throw new IOException("invalid file hash");
+        }
+
+        Upload upload = mUploads.get(uploader);
+
+        try
+        {
+            if (upload == null)
+            {
+                if (chunk.getIndex() != 0)
+                {
+                    throw new IOException("missing start of the file");
+                }
+
+                upload = new Upload(chunk.getHash(), Files.createTempFile(
+                        mTemporaryDirectory, chunk.getHash(), ".part"));
+                mUploads.put(uploader, upload);
+            }
+
+            if (! upload.mHash.equals(chunk.getHash()) || upload.mNextIndex != chunk.getIndex())
+            {
+                throw new IOException("unexpected chunk");
+            }
+
+            upload.mSize += chunk.getData().length;
+
+            if (upload.mSize > mMaxBytes)
+            {
+                throw new IOException("too large file (more than " + mMaxBytes + " bytes)");
+            }
+
+            upload.mStream.write(chunk.getData());
+            upload.mDigest.update(chunk.getData());
+            upload.mNextIndex++;
+
+            if (! chunk.isLast())
+            {
+                return false;
+            }
+
+            mUploads.remove(uploader);
+            upload.mStream.close();
+
+            if (! toHex(upload.mDigest.digest()).equals(upload.mHash))
+            {
+                throw new IOException("content not matching its hash");
+            }
+
+            Path path = mDirectory.resolve(upload.mHash);
+
+            if (Files.exists(path))
+            {
+                // Already sent by someone.
+                Files.delete(upload.mPath);
+            }
+            else
+            {
+                Files.move(upload.mPath, path, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            return true;
+        }
+        catch (IOException e)
+        {
+            if (upload != null)
+            {
+                mUploads.remove(uploader);
+                upload.mStream.close();
+                Files.deleteIfExists(upload.mPath);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Read the file of hash "hash" chunk by chunk, giving them to "consumer".
+     */
+    public void read(String hash, ChunkConsumer consumer) throws IOException
+    {
+        if (! exists(hash))
+        {
+            throw new FileNotFoundException("unknown file " + hash);
+        }
+
+        try (InputStream stream = new BufferedInputStream(
+                Files.newInputStream(mDirectory.resolve(hash))))
+        {
+            byte[] buffer = stream.readNBytes(CHUNK_SIZE);
+
+            for (int index = 0; ; index++)
+            {
+                byte[] next = buffer.length < CHUNK_SIZE ? new byte[0] : stream.readNBytes(CHUNK_SIZE);
+                boolean isLast = next.length == 0;
+                consumer.accept(new AttachmentChunk(hash, index, isLast, buffer));
+
+                if (isLast)
+                {
+                    return;
+                }
+
+                buffer = next;
+            }
+        }
+    }
+
+    /**
+     * Return the lowercase hexadecimal form of "bytes".
+     */
+    public static String toHex(byte[] bytes)
+    {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes)
+        {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return builder.toString();
+    }
+
+    private static boolean isValid(String hash)
+    {
+        // Also prevents from escaping the directory.
+        return hash != null && HASH_PATTERN.matcher(hash).matches();
+    }
+
+    /**
+     * Send a chunk of a file.
+     */
+    public interface ChunkConsumer
+    {
+        void accept(AttachmentChunk chunk) throws IOException;
+    }
+
+    private static class Upload
+    {
+        final String mHash;
+        final Path mPath;
+        final OutputStream mStream;
+        final MessageDigest mDigest;
+        int mNextIndex;
+        long mSize;
+
+        Upload(String hash, Path path) throws IOException
+        {
+            mHash = hash;
+            mPath = path;
+            mStream = new BufferedOutputStream(Files.newOutputStream(path));
+
+            try
+            {
+                mDigest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                // Always available.
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package superchat.server;
+
+import superchat.data.Message;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The server state: connected users (presence registry), message history,
+ * and direct messages history (by conversation).
+ * Every change is written in the history log (once opened), so that it
+ * can be replayed from the last snapshot on restart, and given to the
+ * change listener (if any, e.g. to replicate it).
+ */
+public class ChatState
+{
+    // Guards the changes, so that the log order is the state one.
+    private final Object mLock;
+    // Current connected users, by pseudo (read without locking).
+    private final PresenceRegistry mUsers;
+    // All the messages sent to all the users.
+    private final HistoryStore mHistory;
+    // All the direct messages.
+    private final DirectHistory mDirectHistory;
+    private HistoryLog mLog;
+    private ChangeListener mListener;
+
+    public ChatState()
+    {
+        this(1);
+    }
+
+    /**
+     * Create a state with its presence split in "presenceShards" shards.
+     */
+    public ChatState(int presenceShards)
+    {
+        mLock = new Object();
+        mUsers = new PresenceRegistry(presenceShards);
+        mHistory = new HistoryStore();
+        mDirectHistory = new DirectHistory();
+    }
+
+    /**
+     * Start logging the changes in "log".
+     */
+    public void setLog(HistoryLog log)
+    {
+        synchronized (mLock)
+        {
+            mLog = log;
+        }
+    }
+
+    /**
+     * Give the next changes to "listener" (in the log order, holding the
+     * state lock: it must not block).
+     */
+    public void setListener(ChangeListener listener)
+    {
+        synchronized (mLock)
+        {
+            mListener = listener;
+        }
+    }
+
+    /**
+     * Add the user if the pseudo is available, and return true if so.
+     * The pseudo is checked holding its presence shard lock only (the state
+     * one being taken to add it, once available).
+     */
+    public boolean addUser(String name)
+    {
+        synchronized (mUsers.lockOf(name))
+        {
+            if (mUsers.contains(name))
+            {
+                return false;
+            }
+
+            synchronized (mLock)
+            {
+                mUsers.add(name);
+                logPresence(name, true, System.currentTimeMillis());
+            }
+
+            return true;
+        }
+    }
+
+    public void removeUser(String name)
+    {
+        synchronized (mUsers.lockOf(name))
+        {
+            if (! mUsers.contains(name))
+            {
+                return;
+            }
+
+            synchronized (mLock)
+            {
+                mUsers.remove(name);
+                logPresence(name, false, System.currentTimeMillis());
+            }
+        }
+    }
+
+    private void logPresence(String name, boolean isConnecting, long time)
+    {
+        StateChange change = StateChange.presence(nextSeq(), name, isConnecting, time);
+        log(() -> mLog.appendPresence(name, isConnecting, time));
+        notify(change);
+    }
+
+    /**
+     * Add the message to the history (or to its conversation if direct),
+     * and return it with its position (its log sequence number).
+     * Throw if it cannot be logged (it's then not added).
+     */
+    public Message addMessage(Message message) throws IOException
+    {
+        long time = System.currentTimeMillis();
+
+        synchronized (mLock)
+        {
+            Message stored = message.withSeq(nextSeq());
+
+            if (mLog != null)
+            {
+                // First, so that its position isn't given to another one.
+                mLog.appendMessage(stored, time);
+            }
+
+            restoreMessage(stored, time);
+            notify(StateChange.message(stored.getSeq(), stored, time));
+
+            return stored;
+        }
+    }
+
+    /**
+     * Apply the "change" replicated from the primary server (logged at the
+     * same sequence number), and return false if it doesn't follow the
+     * last one applied (changes are missing).
+     */
+    boolean apply(StateChange change)
+    {
+        synchronized (mLock)
+        {
+            long seq = nextSeq();
+
+            if (change.getSeq() != seq)
+            {
+                // Already applied (e.g. before a snapshot), or missing ones.
+                return change.getSeq() < seq;
+            }
+
+            long time = change.getTime();
+
+            if (change.getType() == HistoryLog.TYPE_MESSAGE)
+            {
+                restoreMessage(change.getMessage(), time);
+                log(() -> mLog.appendMessage(change.getMessage(), time));
+            }
+            else
+            {
+                boolean isConnecting = change.getType() == HistoryLog.TYPE_CONNECTION;
+
+                if (isConnecting)
+                {
+                    mUsers.add(change.getName());
+                }
+                else
+                {
+                    mUsers.remove(change.getName());
+                }
+                // Even if unchanged, to keep the same sequence numbers.
+                log(() -> mLog.appendPresence(change.getName(), isConnecting, time));
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Drop all the state (before loading another one, with the log closed).
+     */
+    void clear()
+    {
+        synchronized (mLock)
+        {
+            mUsers.clear();
+            mHistory.clear();
+            mDirectHistory.clear();
+        }
+    }
+
+    /**
+     * Return the sequence number of the next change (its log one).
+     */
+    long nextSeq()
+    {
+        synchronized (mLock)
+        {
+            return mLog != null ? mLog.getNextSeq() : 0;
+        }
+    }
+
+    /**
+     * Add the message received at "time" (from a snapshot or the log) to the
+     * history, or to its conversation if direct, without logging it.
+     */
+    void restoreMessage(Message message, long time)
+    {
+        if (message.isDirect())
+        {
+            mDirectHistory.append(message, time);
+        }
+        else
+        {
+            mHistory.append(message, time);
+        }
+    }
+
+    /**
+     * Return the connected user named "name", or null.
+     */
+    public UserSession getUser(String name)
+    {
+        return mUsers.get(name);
+    }
+
+    /**
+     * Return a copy of the connected user pseudos.
+     */
+    public ArrayList<String> getUserNames()
+    {
+        return mUsers.names();
+    }
+
+    public PresenceRegistry getPresence()
+    {
+        return mUsers;
+    }
+
+    public HistoryStore getHistory()
+    {
+        return mHistory;
+    }
+
+    public DirectHistory getDirectHistory()
+    {
+        return mDirectHistory;
+    }
+
+    /**
+     * Rotate the log and capture the state at this point, without copying
+     * the history (only the presence, which is small).
+     */
+    Cut cut() throws IOException
+    {
+        synchronized (mLock)
+        {
+            return new Cut(mLog.rotate(), mUsers.names(),
+                    mHistory.cut(), mDirectHistory.cut());
+        }
+    }
+
+    /**
+     * Capture the state as "cut", and give it to the change listener (if
+     * still any), in the order of the changes (the ones after it following).
+     */
+    void cutForListener() throws IOException
+    {
+        synchronized (mLock)
+        {
+            if (mListener == null)
+            {
+                return;
+            }
+
+            mListener.onCut(cut());
+        }
+    }
+
+    /**
+     * Write the logged records in the log file, and return the sequence
+     * number of the last one (-1 if there is no log).
+     */
+    long flushLog() throws IOException
+    {
+        synchronized (mLock)
+        {
+            if (mLog == null)
+            {
+                return -1;
+            }
+
+            mLog.flush();
+
+            return mLog.getNextSeq() - 1;
+        }
+    }
+
+    /**
+     * Make the records written in the log file durable (without holding
+     * the lock, so that the next ones are logged meanwhile).
+     */
+    void syncLog() throws IOException
+    {
+        FileChannel channel;
+
+        synchronized (mLock)
+        {
+            if (mLog == null)
+            {
+                return;
+            }
+
+            channel = mLog.getChannel();
+        }
+
+        try
+        {
+            channel.force(false);
+        }
+        catch (ClosedChannelException e)
+        {
+            // Rotated or closed meanwhile, so already synced.
+        }
+    }
+
+    /**
+     * Delete the log files covered by a snapshot up to "seq".
+     */
+    void deleteLogUpTo(long seq) throws IOException
+    {
+        synchronized (mLock)
+        {
+            mLog.deleteUpTo(seq);
+        }
+    }
+
+    public void closeLog()
+    {
+        synchronized (mLock)
+        {
+            log(() -> mLog.close());
+            mLog = null;
+        }
+    }
+
+    private void log(LogAction action)
+    {
+        if (mLog == null)
+        {
+            return;
+        }
+
+        try
+        {
+            action.run();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot write in the history log " + e);
+        }
+    }
+
+    private void notify(StateChange change)
+    {
+        if (mListener != null)
+        {
+            mListener.onChange(change);
+        }
+    }
+
+    private interface LogAction
+    {
+        void run() throws IOException;
+    }
+
+    /**
+     * Receive the changes of the state, in the log order.
+     */
+    interface ChangeListener
+    {
+        void onChange(StateChange change);
+
+        /**
+         * The state at a point of the changes (see "cutForListener").
+         */
+        void onCut(Cut cut);
+    }
+
+    /**
+     * The state at a log sequence number.
+     */
+    static class Cut
+    {
+        final long mSeq;
+        final List<String> mUserNames;
+        final HistoryStore.Cut mHistory;
+        final List<HistoryStore.Cut> mConversations;
+
+        Cut(long seq, List<String> userNames, HistoryStore.Cut history,
+                List<HistoryStore.Cut> conversations)
+        {
+            mSeq = seq;
+            mUserNames = userNames;
+            mHistory = history;
+            mConversations = conversations;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package superchat.server;
+
+import superchat.data.Message;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The direct messages history, sharded by conversation (a pair of users),
+ * so that a conversation is read without going through the others, and
+ * the main history only contains the messages sent to all the users.
+ */
+public class DirectHistory
+{
+    // Number of messages per segment of a conversation (most are small).
+    private final static int SEGMENT_CAPACITY = 64;
+
+    // A history per conversation, by key.
+    private final ConcurrentHashMap<String, HistoryStore> mConversations;
+    // Interned names and display times, shared by the conversations.
+    private final StringDictionary mStrings;
+
+    public DirectHistory()
+    {
+        mConversations = new ConcurrentHashMap<>();
+        mStrings = new StringDictionary();
+    }
+
+    /**
+     * Add a direct message received at "time" (ms since epoch) to its
+     * conversation.
+     */
+    public void append(Message message, long time)
+    {
+        // Atomically, not to add it to a conversation being dropped.
+        mConversations.compute(keyOf(message.getName(), message.getTo()),
+                (key, conversation) ->
+                        {
+                            if (conversation == null)
+                            {
+                                conversation = new HistoryStore(SEGMENT_CAPACITY, mStrings);
+                            }
+
+                            conversation.append(message, time);
+
+                            return conversation;
+                        }
+        );
+    }
+
+    /**
+     * Enforce "policy" on each conversation, as on the main history (see
+     * "HistoryStore.compact"), and drop the emptied ones.
+     */
+    public HistoryStore.CompactionResult compact(RetentionPolicy policy, long now)
+    {
+        int messages = 0;
+        long bytes = 0;
+
+        for (String key : mConversations.keySet())
+        {
+            HistoryStore conversation = mConversations.get(key);
+
+            if (conversation == null)
+            {
+                continue;
+            }
+
+            HistoryStore.CompactionResult result = conversation.compact(policy, now);
+            messages += result.getMessages();
+            bytes += result.getBytes();
+            mConversations.computeIfPresent(key, (k, current) ->
+                    current.size() == 0 ? null : current);
+        }
+
+        return new HistoryStore.CompactionResult(messages, bytes);
+    }
+
+    /**
+     * Return a copy of the "count" last messages between the users "name1"
+     * and "name2", oldest first.
+     */
+    public ArrayList<Message> last(String name1, String name2, int count)
+    {
+        HistoryStore conversation = mConversations.get(keyOf(name1, name2));
+
+        return conversation == null ? new ArrayList<>() : conversation.last(count, 0);
+    }
+
+    /**
+     * Return a copy of the "count" last direct messages, of all the
+     * conversations, oldest first.
+     */
+    public ArrayList<Message> last(int count)
+    {
+        ArrayList<Message> messages = new ArrayList<>();
+        mConversations.values().forEach(conversation ->
+                messages.addAll(conversation.last(count, 0)));
+        messages.sort(Comparator.comparingLong(Message::getSeq));
+
+        return messages.size() <= count ? messages
+                : new ArrayList<>(messages.subList(messages.size() - count, messages.size()));
+    }
+
+    /**
+     * Drop all the conversations.
+     */
+    void clear()
+    {
+        mConversations.clear();
+    }
+
+    /**
+     * Return the number of conversations.
+     */
+    public int size()
+    {
+        return mConversations.size();
+    }
+
+    /**
+     * Capture the current content of the conversations, to read it later
+     * while appending.
+     */
+    List<HistoryStore.Cut> cut()
+    {
+        List<HistoryStore.Cut> cuts = new ArrayList<>(mConversations.size());
+        mConversations.values().forEach(conversation -> cuts.add(conversation.cut()));
+
+        return cuts;
+    }
+
+    /**
+     * Return the key of the conversation between "name1" and "name2"
+     * (whatever their order).
+     */
+    private static String keyOf(String name1, String name2)
+    {
+        return name1.compareTo(name2) <= 0 ? name1 + '\0' + name2 : name2 + '\0' + name1;
+    }
+}
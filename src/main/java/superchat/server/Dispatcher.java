@@ -0,0 +1,325 @@
+package superchat.server;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Run the client requests concurrently, so that a slow one doesn't
+ * block the others, and wait for the running ones on shutdown.
+ * The requests are in two lanes: the control ones (e.g. connections) are
+ * always run ahead of the bulk ones (e.g. history replays), which only run
+ * a few at a time. The requests of a same key (e.g. the connection and
+ * disconnection of a pseudo) run one at a time, in submission order.
+ * Configured with the "superchat.server.threads" system property:
+ * 0 (default) for a virtual thread per request (when the JVM supports it,
+ * otherwise a cached thread pool), or the size of a fixed thread pool (the
+ * waiting control requests being taken first, and a thread kept for them,
+ * so at least 2);
+ * and "superchat.server.bulkThreads" (default: the number of cores), the
+ * maximum number of bulk requests running at a time.
+ */
+public class Dispatcher
+{
+    // Lanes of the requests.
+    public final static int LANE_CONTROL = 0;
+    public final static int LANE_BULK = 1;
+
+    private final ExecutorService mExecutor;
+    // Bulk requests waiting for a slot (not to hold a thread meanwhile),
+    // and the number of running ones.
+    private final Queue<Scheduled> mWaitingBulk;
+    private final int mMaxBulk;
+    private int mRunningBulk;
+    // Order of the requests within a lane.
+    private final AtomicLong mSequence;
+    // The requests waiting for the running one of their key, by key
+    // (guarded by itself).
+    private final Map<Object, Queue<Runnable>> mOrdered;
+
+    public Dispatcher()
+    {
+        int threads = Integer.getInteger("superchat.server.threads", 0);
+        int maxBulk = Integer.getInteger("superchat.server.bulkThreads",
+                Runtime.getRuntime().availableProcessors());
+
+        if (threads == 1)
+        {
+            // The bulk requests would take the only thread.
+            System.err.println("Error: superchat.server.threads must be at least 2 "
+                    + "(a thread being kept for the connections), using 2.");
+            threads = 2;
+        }
+
+        if (threads > 0)
+        {
+            AtomicInteger count = new AtomicInteger();
+            mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new PriorityBlockingQueue<>(), runnable ->
+                            new Thread(runnable, "dispatcher-" + count.incrementAndGet()));
+            maxBulk = Math.min(maxBulk, threads - 1);
+        }
+        else
+        {
+            mExecutor = newExecutor("dispatcher");
+        }
+
+        mWaitingBulk = new ArrayDeque<>();
+        mMaxBulk = Math.max(maxBulk, 1);
+        mSequence = new AtomicLong();
+        mOrdered = new HashMap<>();
+    }
+
+    /**
+     * Return a new executor following the "superchat.server.threads"
+     * configuration, naming its threads after "name".
+     */
+    public static ExecutorService newExecutor(String name)
+    {
+        int threads = Integer.getInteger("superchat.server.threads", 0);
+        AtomicInteger count = new AtomicInteger();
+
+        if (threads > 0)
+        {
+            return Executors.newFixedThreadPool(threads, runnable ->
+                    new Thread(runnable, name + "-" + count.incrementAndGet()));
+        }
+
+        try
+        {
+            // Java 21+ only, so looked up at runtime.
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return Executors.newCachedThreadPool(runnable ->
+                    new Thread(runnable, name + "-" + count.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Run "task" in its own thread in the lane "lane" (one of the "LANE_"
+     * constants), logging its errors as "name" ones.
+     */
+    public void submit(String name, int lane, Task task)
+    {
+        execute(lane, () -> run(name, task));
+    }
+
+    /**
+     * Run "task" as "submit" does, but after the ones submitted before with
+     * the same "key" (e.g. the requests of a pseudo, to handle them in
+     * their arrival order).
+     */
+    public void submit(String name, int lane, Object key, Task task)
+    {
+        Runnable runnable = () -> run(name, task);
+
+        synchronized (mOrdered)
+        {
+            Queue<Runnable> waiting = mOrdered.get(key);
+
+            if (waiting != null)
+            {
+                // Run after the running one.
+                waiting.add(runnable);
+                return;
+            }
+
+            mOrdered.put(key, new ArrayDeque<>());
+        }
+
+        execute(lane, () -> runOrdered(key, runnable));
+    }
+
+    /**
+     * Run "runnable", then the ones waiting for it (with the same "key").
+     */
+    private void runOrdered(Object key, Runnable runnable)
+    {
+        Runnable next = runnable;
+
+        while (next != null)
+        {
+            next.run();
+
+            synchronized (mOrdered)
+            {
+                next = mOrdered.get(key).poll();
+
+                if (next == null)
+                {
+                    mOrdered.remove(key);
+                }
+            }
+        }
+    }
+
+    private void execute(int lane, Runnable runnable)
+    {
+        long sequence = mSequence.getAndIncrement();
+
+        if (lane == LANE_CONTROL)
+        {
+            mExecutor.execute(new Scheduled(lane, sequence, runnable));
+            return;
+        }
+
+        synchronized (this)
+        {
+            mWaitingBulk.add(new Scheduled(lane, sequence, () ->
+                    {
+                        try
+                        {
+                            runnable.run();
+                        }
+                        finally
+                        {
+                            synchronized (this)
+                            {
+                                mRunningBulk--;
+                                notifyAll();
+                            }
+
+                            startBulk();
+                        }
+                    }
+            ));
+        }
+
+        startBulk();
+    }
+
+    private static void run(String name, Task task)
+    {
+        try
+        {
+            task.run();
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + name + " failed " + e);
+        }
+    }
+
+    /**
+     * Start the waiting bulk requests while there are free slots.
+     */
+    private void startBulk()
+    {
+        List<Scheduled> started = new ArrayList<>();
+
+        synchronized (this)
+        {
+            while (mRunningBulk < mMaxBulk && ! mWaitingBulk.isEmpty())
+            {
+                started.add(mWaitingBulk.poll());
+                mRunningBulk++;
+            }
+        }
+
+        try
+        {
+            started.forEach(mExecutor::execute);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Shutting down: dropped (delivered again to the next server
+            // if the requests queue is durable).
+        }
+    }
+
+    /**
+     * Stop accepting tasks, and wait for the running and waiting ones to
+     * finish (at most "timeout" seconds).
+     */
+    public void drain(long timeout)
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+
+        try
+        {
+            synchronized (this)
+            {
+                // The waiting bulk requests, started as the running ones end.
+                while (! mWaitingBulk.isEmpty() && System.nanoTime() < deadline)
+                {
+                    TimeUnit.NANOSECONDS.timedWait(this, deadline - System.nanoTime());
+                }
+
+                if (! mWaitingBulk.isEmpty())
+                {
+                    System.err.println("Error: " + mWaitingBulk.size()
+                            + " bulk requests dropped on shutdown.");
+                    mWaitingBulk.clear();
+                }
+            }
+
+            mExecutor.shutdown();
+
+            if (! mExecutor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+            {
+                System.err.println("Error: some requests were still running on shutdown.");
+                mExecutor.shutdownNow();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            mExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A request ordered by lane, then by submission (in the queue of the
+     * fixed thread pool).
+     */
+    private static class Scheduled implements Runnable, Comparable<Scheduled>
+    {
+        private final int mLane;
+        private final long mSequence;
+        private final Runnable mRunnable;
+
+        Scheduled(int lane, long sequence, Runnable runnable)
+        {
+            mLane = lane;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run()
+        {
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(Scheduled other)
+        {
+            return mLane != other.mLane ? Integer.compare(mLane, other.mLane)
+                    : Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    /**
+     * A request handling.
+     */
+    public interface Task
+    {
+        void run() throws Exception;
+    }
+}
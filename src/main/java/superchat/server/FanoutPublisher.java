@@ -0,0 +1,114 @@
+package superchat.server;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import org.apache.commons.lang3.SerializationUtils;
+import superchat.data.Message;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Publish the accepted messages to the clients. In batch mode (when the
+ * "superchat.fanout.batchSize" system property is greater than 1), the
+ * messages are grouped in one publish (an ArrayList of messages) when the
+ * batch is full or "superchat.fanout.batchMillis" ms after its first one,
+ * so that bursts cost fewer broker publishes.
+ * The number of messages of each publish is in its "x-message-count" header.
+ */
+public class FanoutPublisher
+{
+    public final static String HEADER_COUNT = "x-message-count";
+
+    private final Channel mChannel;
+    private final String mExchange;
+    private final int mBatchSize;
+    private final long mBatchMillis;
+    private final ScheduledExecutorService mExecutor;
+    // Messages waiting to be published (batch mode).
+    private ArrayList<Message> mBatch;
+
+    public FanoutPublisher(Channel channel, String exchange)
+    {
+        mChannel = channel;
+        mExchange = exchange;
+        mBatchSize = Integer.getInteger("superchat.fanout.batchSize", 1);
+        mBatchMillis = Long.getLong("superchat.fanout.batchMillis", 10);
+        mBatch = new ArrayList<>();
+        mExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+                {
+                    Thread thread = new Thread(runnable, "fanout-publisher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * Publish the message (or add it to the batch). Synchronized with the
+     * flushes so that the publish order is the acceptance one.
+     */
+    public synchronized void publish(Message message) throws IOException
+    {
+        if (mBatchSize <= 1)
+        {
+            publish(message, 1);
+            return;
+        }
+
+        mBatch.add(message);
+
+        if (mBatch.size() >= mBatchSize)
+        {
+            publish(mBatch, mBatch.size());
+            mBatch = new ArrayList<>();
+        }
+        else if (mBatch.size() == 1)
+        {
+            mExecutor.schedule(this::flush, mBatchMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publish the waiting messages now.
+     */
+    public synchronized void flush()
+    {
+        if (mBatch.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            publish(mBatch, mBatch.size());
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: cannot spread " + mBatch.size() + " messages " + e);
+        }
+
+        mBatch = new ArrayList<>();
+    }
+
+    public void stop()
+    {
+        mExecutor.shutdownNow();
+        flush();
+    }
+
+    private void publish(Serializable payload, int count) throws IOException
+    {
+        AMQP.BasicProperties props = new AMQP.BasicProperties
+                .Builder()
+                .headers(Collections.singletonMap(HEADER_COUNT, count))
+                .build();
+        mChannel.basicPublish(mExchange, "", props, SerializationUtils.serialize(payload));
+    }
+}
@@ -0,0 +1,257 @@
+package superchat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Make the log records durable (synced to the disk) in groups, in a
+ * background thread, and then run the actions waiting for them (e.g. the
+ * acknowledgments of the received messages).
+ * The records logged during a sync are grouped in the next one. Under
+ * load (i.e. when the previous group had several records), a group also
+ * waits for as many records as the previous one, up to a count, a size or
+ * a delay (whichever first). The log is otherwise synced every second.
+ */
+public class GroupCommitter
+{
+    // Time between two syncs when no action is waiting (in ms).
+    private final static long IDLE_PERIOD = 1000;
+
+    private final ChatState mState;
+    // Limits of a group: number of actions, size of their records (in
+    // bytes), and wait of the first one (in ns).
+    private final int mMaxCount;
+    private final long mMaxBytes;
+    private final long mMaxDelay;
+    private final Thread mThread;
+
+    // The actions waiting for the next sync (guarded by this).
+    private List<Action> mWaiting;
+    private long mWaitingBytes;
+    private long mFirstTime;
+    private boolean mIsStopped;
+
+    // Size of the previous group (the expected one).
+    private volatile int mLastCount;
+    // Only used by the committer thread.
+    private long mCommitted;
+    // Guards the syncs (also made by the callers once stopped).
+    private final Object mSyncLock;
+    private long mSyncedSeq;
+    private long mSyncs;
+
+    /**
+     * Commit the log of "state", in groups limited by the
+     * "superchat.log.groupMaxCount", "superchat.log.groupMaxBytes" and
+     * "superchat.log.groupMaxMillis" system properties.
+     */
+    public GroupCommitter(ChatState state)
+    {
+        mState = state;
+        mMaxCount = Integer.getInteger("superchat.log.groupMaxCount", 256);
+        mMaxBytes = Long.getLong("superchat.log.groupMaxBytes", 1024 * 1024);
+        mMaxDelay = TimeUnit.MILLISECONDS.toNanos(
+                Long.getLong("superchat.log.groupMaxMillis", 2));
+        mWaiting = new ArrayList<>();
+        mSyncLock = new Object();
+        mSyncedSeq = -1;
+        mThread = new Thread(this::run, "group-committer");
+        mThread.setDaemon(true);
+    }
+
+    public void start()
+    {
+        mThread.start();
+    }
+
+    /**
+     * Run "action" once all the records logged so far are durable (or
+     * couldn't be synced), "bytes" being the estimated size of the last one.
+     */
+    public void whenDurable(long bytes, Action action) throws IOException
+    {
+        synchronized (this)
+        {
+            if (! mIsStopped)
+            {
+                if (mWaiting.isEmpty())
+                {
+                    mFirstTime = System.nanoTime();
+                }
+
+                mWaiting.add(action);
+                mWaitingBytes += bytes;
+                // Wake the committer when the group can start, or is full.
+                if (mWaiting.size() == 1 || mWaiting.size() >= Math.min(mLastCount, mMaxCount)
+                        || mWaitingBytes >= mMaxBytes)
+                {
+                    notifyAll();
+                }
+
+                return;
+            }
+        }
+        // Stopped: synced by the caller.
+        action.run(sync());
+    }
+
+    /**
+     * Commit the waiting actions, and stop.
+     */
+    public void stop()
+    {
+        synchronized (this)
+        {
+            mIsStopped = true;
+            notifyAll();
+        }
+
+        try
+        {
+            mThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        System.out.println("Log: " + mCommitted + " records committed in " + mSyncs
+                + " syncs since launch.");
+    }
+
+    private void run()
+    {
+        boolean isStopped = false;
+
+        while (! isStopped)
+        {
+            List<Action> group;
+
+            synchronized (this)
+            {
+                waitForGroup();
+                group = mWaiting;
+                isStopped = mIsStopped;
+                mWaiting = new ArrayList<>();
+                mWaitingBytes = 0;
+            }
+
+            boolean isDurable = sync();
+
+            for (Action action : group)
+            {
+                try
+                {
+                    action.run(isDurable);
+                }
+                catch (Exception e)
+                {
+                    System.err.println("Error: after a log sync " + e);
+                }
+            }
+
+            mLastCount = group.size();
+            mCommitted += group.size();
+        }
+    }
+
+    /**
+     * Wait for the next group to start (or the idle period to end), then,
+     * under load, for it to be as large as the previous one, full, or to
+     * have waited long enough.
+     */
+    private void waitForGroup()
+    {
+        long idleEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_PERIOD);
+
+        while (! mIsStopped && mWaiting.isEmpty())
+        {
+            if (! waitUntil(idleEnd))
+            {
+                return;
+            }
+        }
+
+        if (mLastCount <= 1)
+        {
+            // Alone: no need to wait for the others.
+            return;
+        }
+
+        long end = mFirstTime + mMaxDelay;
+        int count = Math.min(mLastCount, mMaxCount);
+
+        while (! mIsStopped && mWaiting.size() < count && mWaitingBytes < mMaxBytes)
+        {
+            if (! waitUntil(end))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait (holding the lock) until notified or "end", and return false if
+     * "end" is reached.
+     */
+    private boolean waitUntil(long end)
+    {
+        long remaining = end - System.nanoTime();
+
+        if (remaining <= 0)
+        {
+            return false;
+        }
+
+        try
+        {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Write and sync the records logged so far, and return false if failed.
+     */
+    private boolean sync()
+    {
+        synchronized (mSyncLock)
+        {
+            try
+            {
+                long seq = mState.flushLog();
+                // Different if something was logged (or another state installed).
+                if (seq != mSyncedSeq)
+                {
+                    mState.syncLog();
+                    mSyncedSeq = seq;
+                    mSyncs++;
+                }
+
+                return true;
+            }
+            catch (IOException e)
+            {
+                System.err.println("Error: cannot sync the history log " + e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * An action waiting for the records to be durable.
+     */
+    public interface Action
+    {
+        void run(boolean isDurable) throws IOException;
+    }
+}
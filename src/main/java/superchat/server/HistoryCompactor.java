@@ -0,0 +1,90 @@
+package superchat.server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Periodically enforce a retention policy on a history store, and on each
+ * direct messages conversation, in a background thread, and report what
+ * was reclaimed.
+ */
+public class HistoryCompactor
+{
+    private final HistoryStore mHistory;
+    private final DirectHistory mDirectHistory;
+    private final RetentionPolicy mPolicy;
+    private final ScheduledExecutorService mExecutor;
+    // Totals since launch.
+    private long mReclaimedMessages;
+    private long mReclaimedBytes;
+
+    public HistoryCompactor(HistoryStore history, DirectHistory directHistory,
+                            RetentionPolicy policy)
+    {
+        mHistory = history;
+        mDirectHistory = directHistory;
+        mPolicy = policy;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+                {
+                    Thread thread = new Thread(runnable, "history-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * Compact every "period" seconds
+     * (set by the "superchat.history.compactionSeconds" system property).
+     */
+    public void start()
+    {
+        long period = Long.getLong("superchat.history.compactionSeconds", 60);
+        mExecutor.scheduleWithFixedDelay(this::compact, period, period, TimeUnit.SECONDS);
+    }
+
+    public void stop()
+    {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Run a compaction now.
+     */
+    public void compact()
+    {
+        try
+        {
+            long start = System.nanoTime();
+            long now = System.currentTimeMillis();
+            HistoryStore.CompactionResult history = mHistory.compact(mPolicy, now);
+            HistoryStore.CompactionResult direct = mDirectHistory.compact(mPolicy, now);
+            HistoryStore.CompactionResult result = new HistoryStore.CompactionResult(
+                    history.getMessages() + direct.getMessages(),
+                    history.getBytes() + direct.getBytes());
+            long elapsed = Math.max(System.nanoTime() - start, 1);
+
+            if (result.getMessages() == 0)
+            {
+                return;
+            }
+
+            mReclaimedMessages += result.getMessages();
+            mReclaimedBytes += result.getBytes();
+
+            System.out.println("Compaction: " + result.getMessages() + " messages ("
+                    + result.getBytes() + " bytes) reclaimed in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms ("
+                    + (long) (result.getMessages() / (elapsed / 1e9)) + " messages/s), "
+                    + mReclaimedMessages + " messages (" + mReclaimedBytes
+                    + " bytes) since launch.");
+        }
+        catch (Exception e)
+        {
+            // Never let an error cancel the next compactions.
+            System.err.println("Error: history compaction failed " + e);
+        }
+    }
+}
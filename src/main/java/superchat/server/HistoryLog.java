@@ -0,0 +1,303 @@
+package superchat.server;
+
+import org.apache.commons.lang3.SerializationUtils;
+import superchat.data.Message;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+
+/**
+ * Append-only log of the state changes (messages, connections and
+ * disconnections) since the last snapshot, to replay them on restart.
+ * It is split in files named after the sequence number of their first
+ * record, so that the ones covered by a snapshot can be deleted.
+ * The records are buffered: they are written by "flush", and made durable
+ * by syncing the file (see "GroupCommitter"), or on rotation.
+ */
+public class HistoryLog
+{
+    // Record types.
+    final static byte TYPE_MESSAGE = 0;
+    final static byte TYPE_CONNECTION = 1;
+    final static byte TYPE_DISCONNECTION = 2;
+
+    private final static String EXTENSION = ".log";
+
+    private final Path mDirectory;
+    private DataOutputStream mStream;
+    // The current file (to sync it).
+    private FileChannel mChannel;
+    // Sequence number of the next record.
+    private long mNextSeq;
+    // Set when a write failed: the file may end with a part of a record,
+    // so nothing is written after it (the replay stopping there).
+    private boolean mIsFailed;
+
+    /**
+     * Open a new log file in "directory", starting at "nextSeq".
+     */
+    public HistoryLog(Path directory, long nextSeq) throws IOException
+    {
+        mDirectory = directory;
+        mNextSeq = nextSeq;
+        Files.createDirectories(directory);
+        open();
+    }
+
+    private void open() throws IOException
+    {
+        Path path = mDirectory.resolve(String.format("%020d", mNextSeq) + EXTENSION);
+        FileOutputStream file = new FileOutputStream(path.toFile(), true);
+        mChannel = file.getChannel();
+        mStream = new DataOutputStream(new BufferedOutputStream(file));
+    }
+
+    /**
+     * Log a message received at "time", and return its sequence number.
+     */
+    public long appendMessage(Message message, long time) throws IOException
+    {
+        byte[] bytes = SerializationUtils.serialize(message);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 21);
+        DataOutputStream stream = new DataOutputStream(record);
+
+        stream.writeLong(mNextSeq);
+        stream.writeByte(TYPE_MESSAGE);
+        stream.writeLong(time);
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+
+        return append(record);
+    }
+
+    /**
+     * Log a connection (or disconnection) of "name" at "time",
+     * and return its sequence number.
+     */
+    public long appendPresence(String name, boolean isConnecting, long time)
+            throws IOException
+    {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(record);
+
+        stream.writeLong(mNextSeq);
+        stream.writeByte(isConnecting ? TYPE_CONNECTION : TYPE_DISCONNECTION);
+        stream.writeLong(time);
+        stream.writeUTF(name);
+
+        return append(record);
+    }
+
+    /**
+     * Write the encoded "record" at once, and return its sequence number.
+     */
+    private long append(ByteArrayOutputStream record) throws IOException
+    {
+        checkFailed();
+
+        try
+        {
+            record.writeTo(mStream);
+        }
+        catch (IOException e)
+        {
+            mIsFailed = true;
+            throw e;
+        }
+
+        return mNextSeq++;
+    }
+
+    private void checkFailed() throws IOException
+    {
+        if (mIsFailed)
+        {
+            throw new IOException("a previous write in the log failed.");
+        }
+    }
+
+    /**
+     * Continue in a new file, and return the sequence number of the last
+     * record of the previous ones.
+     */
+    public long rotate() throws IOException
+    {
+        close();
+        open();
+
+        return mNextSeq - 1;
+    }
+
+    /**
+     * Delete the files which only contain records up to "seq"
+     * (i.e. all but the current one, when called after a snapshot
+     * covering the previous rotation).
+     */
+    public void deleteUpTo(long seq) throws IOException
+    {
+        List<Path> files = listFiles(mDirectory);
+
+        for (int i = 0; i < files.size() - 1; i++)
+        {
+            // The records of a file end where the next one starts.
+            if (firstSeqOf(files.get(i + 1)) <= seq + 1)
+            {
+                Files.delete(files.get(i));
+            }
+        }
+    }
+
+    /**
+     * Delete all the log files in "directory" (e.g. before installing a
+     * snapshot of another state).
+     */
+    public static void deleteAll(Path directory) throws IOException
+    {
+        if (Files.isDirectory(directory))
+        {
+            for (Path file : listFiles(directory))
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    public long getNextSeq()
+    {
+        return mNextSeq;
+    }
+
+    /**
+     * Write the buffered records in the file (not durable until synced).
+     */
+    public void flush() throws IOException
+    {
+        checkFailed();
+
+        try
+        {
+            mStream.flush();
+        }
+        catch (IOException e)
+        {
+            mIsFailed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Return the current file, to sync the records written in it.
+     */
+    FileChannel getChannel()
+    {
+        return mChannel;
+    }
+
+    /**
+     * Close the current file, once its records are durable.
+     */
+    public void close() throws IOException
+    {
+        mStream.flush();
+        mChannel.force(false);
+        mStream.close();
+    }
+
+    /**
+     * Replay the records of the log files in "directory" after "seq",
+     * and return the sequence number of the last one.
+     */
+    public static long replay(Path directory, long seq, RecordHandler handler)
+            throws IOException
+    {
+        if (! Files.isDirectory(directory))
+        {
+            return seq;
+        }
+
+        long lastSeq = seq;
+
+        for (Path file : listFiles(directory))
+        {
+            try (DataInputStream stream = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file.toFile()))))
+            {
+                while (true)
+                {
+                    long recordSeq = stream.readLong();
+                    byte type = stream.readByte();
+                    long time = stream.readLong();
+                    Message message = null;
+                    String name = null;
+
+                    if (type == TYPE_MESSAGE)
+                    {
+                        byte[] bytes = new byte[stream.readInt()];
+                        stream.readFully(bytes);
+                        message = SerializationUtils.deserialize(bytes);
+                    }
+                    else
+                    {
+                        name = stream.readUTF();
+                    }
+
+                    if (recordSeq > lastSeq)
+                    {
+                        lastSeq = recordSeq;
+
+                        if (message != null)
+                        {
+                            handler.onMessage(message, time);
+                        }
+                        else
+                        {
+                            handler.onPresence(name, type == TYPE_CONNECTION);
+                        }
+                    }
+                }
+            }
+            catch (EOFException e)
+            {
+                // End of the file (or record cut by a crash) => normal behavior.
+            }
+        }
+
+        return lastSeq;
+    }
+
+    private static List<Path> listFiles(Path directory) throws IOException
+    {
+        try (Stream<Path> stream = Files.list(directory))
+        {
+            List<Path> files = new ArrayList<>();
+            stream.filter(path -> path.toString().endsWith(EXTENSION))
+                    .sorted()
+                    .forEach(files::add);
+
+            return files;
+        }
+    }
+
+    private static long firstSeqOf(Path file)
+    {
+        String name = file.getFileName().toString();
+
+        return Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+    }
+
+    /**
+     * Receive the replayed records.
+     */
+    public interface RecordHandler
+    {
+        void onMessage(Message message, long time);
+
+        void onPresence(String name, boolean isConnecting);
+    }
+}
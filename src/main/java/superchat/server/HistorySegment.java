@@ -0,0 +1,338 @@
+package superchat.server;
+
+import superchat.data.Message;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+
+/**
+ * A fixed capacity, append-only slice of the message history.
+ * Only one thread appends at a time (under the store lock), while readers
+ * go through the published size without locking.
+ * The messages are stored by column, in primitive arrays: the names and
+ * display times as ids of the store dictionary, the ids (UUIDs) as two
+ * longs, and the contents packed in a single UTF-8 byte array. The messages
+ * which don't fit (e.g. with an attachment) are kept as they are.
+ */
+class HistorySegment
+{
+    // Estimated size of the columns of a message (content excluded), and
+    // of a message kept as it is (its own size excluded).
+    private final static int ENTRY_BYTES = 56;
+    private final static int OTHER_BYTES = 16;
+    // Estimated average size of a content (to size the content array).
+    private final static int CONTENT_BYTES = 32;
+
+    // The message has an id (in the id columns).
+    private final static byte FLAG_ID = 1;
+    // The message is kept as it is (in the other messages).
+    private final static byte FLAG_OTHER = 2;
+
+    private final StringDictionary mStrings;
+    // Reception time (ms since epoch) and history position.
+    private final long[] mTimes;
+    private final long[] mSeqs;
+    // Ids in the dictionary of the sender name, display time and
+    // recipient name (-1 if none).
+    private final int[] mNameIds;
+    private final int[] mClockIds;
+    private final int[] mToIds;
+    // Message ids (the two halves of the UUID).
+    private final long[] mIdHighs;
+    private final long[] mIdLows;
+    private final byte[] mFlags;
+    // End of each content in the packed contents (replaced when full,
+    // or trimmed to its size once the segment is sealed).
+    private final int[] mContentEnds;
+    private volatile byte[] mContents;
+    // Messages kept as they are (null otherwise).
+    private final Message[] mOthers;
+    // First live index (older ones were dropped by the compactor).
+    private volatile int mStart;
+    // Number of appended messages (published to the readers).
+    private volatile int mSize;
+    // Estimated size of the appended messages.
+    private volatile long mBytes;
+
+    HistorySegment(int capacity, StringDictionary strings)
+    {
+        mStrings = strings;
+        mTimes = new long[capacity];
+        mSeqs = new long[capacity];
+        mNameIds = new int[capacity];
+        mClockIds = new int[capacity];
+        mToIds = new int[capacity];
+        mIdHighs = new long[capacity];
+        mIdLows = new long[capacity];
+        mFlags = new byte[capacity];
+        mContentEnds = new int[capacity];
+        mContents = new byte[capacity * CONTENT_BYTES];
+        mOthers = new Message[capacity];
+    }
+
+    /**
+     * Append the message, and return false if the segment is full.
+     */
+    boolean append(Message message, long time)
+    {
+        int size = mSize;
+
+        if (size == mTimes.length)
+        {
+            return false;
+        }
+
+        int start = size == 0 ? 0 : mContentEnds[size - 1];
+        mTimes[size] = time;
+        mSeqs[size] = message.getSeq();
+        UUID id = toUUID(message.getId());
+
+        if (message.getName() == null || message.getContent() == null
+                || message.getTime() == null || message.getAttachment() != null
+                || (message.getId() != null && id == null))
+        {
+            mOthers[size] = message;
+            mFlags[size] = FLAG_OTHER;
+            mContentEnds[size] = start;
+        }
+        else
+        {
+            byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+            byte[] contents = mContents;
+
+            if (start + content.length > contents.length)
+            {
+                contents = Arrays.copyOf(contents,
+                        Math.max(start + content.length, contents.length * 2));
+            }
+
+            System.arraycopy(content, 0, contents, start, content.length);
+            mContents = contents;
+            mContentEnds[size] = start + content.length;
+            mNameIds[size] = mStrings.idOf(message.getName());
+            mClockIds[size] = mStrings.idOf(message.getTime());
+            mToIds[size] = message.getTo() != null ? mStrings.idOf(message.getTo()) : -1;
+
+            if (id != null)
+            {
+                mIdHighs[size] = id.getMostSignificantBits();
+                mIdLows[size] = id.getLeastSignificantBits();
+                mFlags[size] = FLAG_ID;
+            }
+        }
+
+        mBytes += bytesAt(size);
+        // Publish the message.
+        mSize = size + 1;
+
+        return true;
+    }
+
+    /**
+     * Release the unused part of the packed contents, once the segment is
+     * full (no longer appended).
+     */
+    void seal()
+    {
+        int size = mSize;
+        int end = size == 0 ? 0 : mContentEnds[size - 1];
+
+        if (end < mContents.length)
+        {
+            mContents = Arrays.copyOf(mContents, end);
+        }
+    }
+
+    /**
+     * Return a sealed copy of this segment without its "count" first live messages.
+     */
+    HistorySegment rewrite(int count)
+    {
+        int start = mStart + count;
+        int size = mSize;
+        HistorySegment segment = new HistorySegment(size - start, mStrings);
+
+        for (int i = start; i < size; i++)
+        {
+            segment.append(read(i), mTimes[i]);
+        }
+
+        segment.seal();
+
+        return segment;
+    }
+
+    /**
+     * Drop the "count" first live messages in place (used on the segment
+     * being appended, which cannot be rewritten; their packed contents are
+     * only reclaimed once it is).
+     */
+    long trim(int count)
+    {
+        long bytes = 0;
+        int start = mStart;
+
+        for (int i = start; i < start + count; i++)
+        {
+            bytes += bytesAt(i);
+            mOthers[i] = null;
+        }
+
+        mStart = start + count;
+        mBytes -= bytes;
+
+        return bytes;
+    }
+
+    void copyTo(List<Message> messages)
+    {
+        int size = mSize;
+
+        for (int i = mStart; i < size; i++)
+        {
+            Message message = read(i);
+            // May have been trimmed meanwhile.
+            if (message != null)
+            {
+                messages.add(message);
+            }
+        }
+    }
+
+    /**
+     * Give the live messages appended before "end" (an append count) to "consumer".
+     */
+    void forEach(int end, HistoryStore.EntryConsumer consumer) throws IOException
+    {
+        for (int i = mStart; i < end; i++)
+        {
+            Message message = read(i);
+
+            if (message != null)
+            {
+                consumer.accept(message, mTimes[i]);
+            }
+        }
+    }
+
+    /**
+     * Return the number of appended messages (trimmed ones included).
+     */
+    int appended()
+    {
+        return mSize;
+    }
+
+    /**
+     * Return the index of the first live message (the indexes being the
+     * append ones, so that they don't move when trimmed).
+     */
+    int start()
+    {
+        return mStart;
+    }
+
+    /**
+     * Return the message at "index" (rebuilt from the columns), or null if
+     * trimmed meanwhile.
+     */
+    Message getMessage(int index)
+    {
+        return read(index);
+    }
+
+    long getTime(int index)
+    {
+        return mTimes[index];
+    }
+
+    long getSeq(int index)
+    {
+        return mSeqs[index];
+    }
+
+    /**
+     * Return the estimated size of the message at "index".
+     */
+    long getBytes(int index)
+    {
+        return bytesAt(index);
+    }
+
+    int size()
+    {
+        return mSize - mStart;
+    }
+
+    long bytes()
+    {
+        return mBytes;
+    }
+
+    boolean isFull()
+    {
+        return mSize == mTimes.length;
+    }
+
+    private Message read(int i)
+    {
+        if (i < mStart)
+        {
+            return null;
+        }
+
+        if ((mFlags[i] & FLAG_OTHER) != 0)
+        {
+            // Null if trimmed meanwhile.
+            return mOthers[i];
+        }
+
+        int start = i == 0 ? 0 : mContentEnds[i - 1];
+        String content = new String(mContents, start, mContentEnds[i] - start,
+                StandardCharsets.UTF_8);
+        String id = (mFlags[i] & FLAG_ID) != 0 ?
+                new UUID(mIdHighs[i], mIdLows[i]).toString() : null;
+        String to = mToIds[i] >= 0 ? mStrings.valueOf(mToIds[i]) : null;
+
+        return new Message(mStrings.valueOf(mNameIds[i]), content,
+                mStrings.valueOf(mClockIds[i]), id, to).withSeq(mSeqs[i]);
+    }
+
+    private long bytesAt(int i)
+    {
+        if ((mFlags[i] & FLAG_OTHER) != 0)
+        {
+            Message message = mOthers[i];
+
+            return OTHER_BYTES + (message != null ? HistoryStore.sizeOf(message) : 0);
+        }
+
+        return ENTRY_BYTES + mContentEnds[i] - (i == 0 ? 0 : mContentEnds[i - 1]);
+    }
+
+    /**
+     * Return "id" as a UUID if it is one (in its canonical form), or null.
+     */
+    private static UUID toUUID(String id)
+    {
+        if (id == null || id.length() != 36)
+        {
+            return null;
+        }
+
+        try
+        {
+            UUID uuid = UUID.fromString(id);
+
+            return uuid.toString().equals(id) ? uuid : null;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+}
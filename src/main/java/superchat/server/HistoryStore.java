@@ -0,0 +1,443 @@
+package superchat.server;
+
+import superchat.data.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * The message history of a chat room, stored as a list of segments so
+ * that old messages can be dropped by the compactor without blocking the
+ * appends, and read without locking. The segments store the messages by
+ * column, the repeated strings (names, display times) being interned in
+ * the dictionary of the store.
+ */
+public class HistoryStore
+{
+    // Number of messages per segment (by default).
+    private final static int SEGMENT_CAPACITY = 1024;
+    // Estimated fixed cost of a message object (object headers, references).
+    private final static int MESSAGE_OVERHEAD = 64;
+
+    // Guards the appends and the segment list replacements.
+    private final Object mLock;
+    // Only one compaction at a time.
+    private final Object mCompactionLock;
+    // Oldest first; the last one is the one being appended.
+    private volatile List<HistorySegment> mSegments;
+    private HistorySegment mTail;
+    private final int mSegmentCapacity;
+    // Interned names and display times of the messages.
+    private final StringDictionary mStrings;
+
+    public HistoryStore()
+    {
+        this(SEGMENT_CAPACITY, new StringDictionary());
+    }
+
+    /**
+     * Create a history of segments of "segmentCapacity" messages (smaller
+     * for the small histories, e.g. of conversations), interning its
+     * strings in "strings" (which can be shared by several histories).
+     */
+    HistoryStore(int segmentCapacity, StringDictionary strings)
+    {
+        mLock = new Object();
+        mCompactionLock = new Object();
+        mSegmentCapacity = segmentCapacity;
+        mStrings = strings;
+        mTail = new HistorySegment(mSegmentCapacity, mStrings);
+        mSegments = Collections.singletonList(mTail);
+    }
+
+    /**
+     * Return the estimated heap size of a message object (when kept as it
+     * is, rather than in the columns of a segment).
+     */
+    static long sizeOf(Message message)
+    {
+        return MESSAGE_OVERHEAD + 2L * (message.getName().length()
+                + message.getContent().length() + message.getTime().length()
+                + (message.getId() != null ? message.getId().length() : 0)
+                + (message.getTo() != null ? message.getTo().length() : 0));
+    }
+
+    /**
+     * Add a message received at "time" (ms since epoch).
+     */
+    public void append(Message message, long time)
+    {
+        synchronized (mLock)
+        {
+            if (! mTail.append(message, time))
+            {
+                // Seal the full segment and start a new one.
+                mTail.seal();
+                mTail = new HistorySegment(mSegmentCapacity, mStrings);
+                mTail.append(message, time);
+
+                List<HistorySegment> segments = new ArrayList<>(mSegments);
+                segments.add(mTail);
+                mSegments = Collections.unmodifiableList(segments);
+            }
+        }
+    }
+
+    /**
+     * Drop all the messages.
+     */
+    void clear()
+    {
+        synchronized (mCompactionLock)
+        {
+            synchronized (mLock)
+            {
+                mTail = new HistorySegment(mSegmentCapacity, mStrings);
+                mSegments = Collections.singletonList(mTail);
+            }
+        }
+    }
+
+    public void appendAll(List<Message> messages, long time)
+    {
+        messages.forEach(message -> append(message, time));
+    }
+
+    /**
+     * Return a copy of all the messages, oldest first.
+     */
+    public ArrayList<Message> toList()
+    {
+        ArrayList<Message> messages = new ArrayList<>(size());
+        mSegments.forEach(segment -> segment.copyTo(messages));
+
+        return messages;
+    }
+
+    /**
+     * Return a copy of the "count" messages before the "skip" most recent
+     * ones, oldest first.
+     */
+    public ArrayList<Message> last(int count, int skip)
+    {
+        List<HistorySegment> segments = mSegments;
+        ArrayList<Message> messages = new ArrayList<>();
+        // Walk back from the most recent message.
+        for (int i = segments.size() - 1; i >= 0 && messages.size() < count; i--)
+        {
+            HistorySegment segment = segments.get(i);
+            // Read once: the indexes don't move if trimmed meanwhile.
+            int start = segment.start();
+
+            for (int j = segment.appended() - 1; j >= start && messages.size() < count; j--)
+            {
+                Message message = segment.getMessage(j);
+
+                if (message == null)
+                {
+                    // Trimmed meanwhile: older ones are too.
+                    break;
+                }
+                else if (skip > 0)
+                {
+                    skip--;
+                }
+                else
+                {
+                    messages.add(message);
+                }
+            }
+        }
+
+        Collections.reverse(messages);
+
+        return messages;
+    }
+
+    /**
+     * Return a copy of the "count" first messages after the "seq" history
+     * position, oldest first.
+     */
+    public ArrayList<Message> after(long seq, int count)
+    {
+        List<HistorySegment> segments = mSegments;
+        ArrayList<Message> messages = new ArrayList<>();
+        // Walk forward from the first message after "seq".
+        for (int i = 0; i < segments.size() && messages.size() < count; i++)
+        {
+            HistorySegment segment = segments.get(i);
+            int end = segment.appended();
+
+            if (end == 0 || segment.getSeq(end - 1) <= seq)
+            {
+                // Empty, or already received.
+                continue;
+            }
+
+            for (int j = firstAfter(segment, seq, end); j < end && messages.size() < count; j++)
+            {
+                Message message = segment.getMessage(j);
+
+                if (message != null)
+                {
+                    // Else trimmed meanwhile (the next ones may not be).
+                    messages.add(message);
+                }
+            }
+        }
+
+        return messages;
+    }
+
+    /**
+     * Return the index of the first message of "segment" after the "seq"
+     * history position (the last one, before "end", being after it).
+     */
+    private static int firstAfter(HistorySegment segment, long seq, int end)
+    {
+        // Read once: the indexes don't move if trimmed meanwhile.
+        int low = segment.start();
+        int high = end - 1;
+
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+
+            if (segment.getSeq(middle) <= seq)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Return a copy of the messages after the "seq" history position,
+     * oldest first.
+     */
+    public ArrayList<Message> since(long seq)
+    {
+        List<HistorySegment> segments = mSegments;
+        ArrayList<Message> messages = new ArrayList<>();
+        // Walk back from the most recent message.
+        for (int i = segments.size() - 1; i >= 0; i--)
+        {
+            HistorySegment segment = segments.get(i);
+            // Read once: the indexes don't move if trimmed meanwhile.
+            int start = segment.start();
+
+            for (int j = segment.appended() - 1; j >= start; j--)
+            {
+                Message message = segment.getSeq(j) > seq ? segment.getMessage(j) : null;
+
+                if (message == null)
+                {
+                    // Already received, or trimmed meanwhile: older ones are too.
+                    Collections.reverse(messages);
+                    return messages;
+                }
+
+                messages.add(message);
+            }
+        }
+
+        Collections.reverse(messages);
+
+        return messages;
+    }
+
+    /**
+     * Capture the current content, to read it later while appending.
+     */
+    public Cut cut()
+    {
+        synchronized (mLock)
+        {
+            return new Cut(mSegments, mTail.appended());
+        }
+    }
+
+    public int size()
+    {
+        int size = 0;
+
+        for (HistorySegment segment : mSegments)
+        {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    public long bytes()
+    {
+        long bytes = 0;
+
+        for (HistorySegment segment : mSegments)
+        {
+            bytes += segment.bytes();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Drop the oldest messages exceeding the "policy" limits at "now"
+     * (ms since epoch). Full segments are dropped or rewritten outside the
+     * lock, which is only held to swap the segment list.
+     */
+    public CompactionResult compact(RetentionPolicy policy, long now)
+    {
+        synchronized (mCompactionLock)
+        {
+            List<HistorySegment> segments = mSegments;
+            // Count the oldest messages to drop.
+            int count = 0;
+            long bytes = 0;
+
+            for (HistorySegment segment : segments)
+            {
+                count += segment.size();
+                bytes += segment.bytes();
+            }
+
+            int dropped = 0;
+            long reclaimed = 0;
+            long minTime = policy.getMaxAgeMillis() > 0 ?
+                    now - policy.getMaxAgeMillis() : Long.MIN_VALUE;
+
+            search:
+            for (HistorySegment segment : segments)
+            {
+                int start = segment.start();
+                int end = start + segment.size();
+
+                for (int i = start; i < end; i++)
+                {
+                    if (! (count - dropped > policy.getMaxCount()
+                                || bytes - reclaimed > policy.getMaxBytes()
+                                || segment.getTime(i) < minTime))
+                    {
+                        break search;
+                    }
+
+                    dropped++;
+                    reclaimed += segment.getBytes(i);
+                }
+            }
+
+            if (dropped == 0)
+            {
+                return new CompactionResult(0, 0);
+            }
+            // Drop or rewrite the sealed segments (i.e. all but the last one).
+            List<HistorySegment> replacements = new ArrayList<>();
+            int remaining = dropped;
+            int replaced = 0;
+
+            while (replaced < segments.size() - 1 && remaining > 0)
+            {
+                HistorySegment segment = segments.get(replaced);
+
+                if (remaining < segment.size())
+                {
+                    replacements.add(segment.rewrite(remaining));
+                    remaining = 0;
+                }
+                else
+                {
+                    remaining -= segment.size();
+                }
+
+                replaced++;
+            }
+
+            synchronized (mLock)
+            {
+                // Only the compactor removes heads, so the "replaced" first
+                // segments are still the ones we looked at.
+                List<HistorySegment> current = mSegments;
+                replacements.addAll(current.subList(replaced, current.size()));
+                mSegments = Collections.unmodifiableList(replacements);
+                // The last segment may still be appended: trim it in place.
+                if (remaining > 0)
+                {
+                    segments.get(segments.size() - 1).trim(remaining);
+                }
+            }
+
+            return new CompactionResult(dropped, reclaimed);
+        }
+    }
+
+    /**
+     * Receive the messages with their reception time (ms since epoch).
+     */
+    public interface EntryConsumer
+    {
+        void accept(Message message, long time) throws IOException;
+    }
+
+    /**
+     * The content of the store at a given time.
+     */
+    public static class Cut
+    {
+        private final List<HistorySegment> mSegments;
+        // Append count of the last segment at that time.
+        private final int mTailEnd;
+
+        Cut(List<HistorySegment> segments, int tailEnd)
+        {
+            mSegments = segments;
+            mTailEnd = tailEnd;
+        }
+
+        /**
+         * Give the messages, oldest first, to "consumer" (the ones dropped
+         * since by the compactor may be skipped).
+         */
+        public void forEach(EntryConsumer consumer) throws IOException
+        {
+            for (int i = 0; i < mSegments.size(); i++)
+            {
+                HistorySegment segment = mSegments.get(i);
+                segment.forEach(i == mSegments.size() - 1 ?
+                        mTailEnd : segment.appended(), consumer);
+            }
+        }
+    }
+
+    /**
+     * What a compaction reclaimed.
+     */
+    public static class CompactionResult
+    {
+        private final int mMessages;
+        private final long mBytes;
+
+        public CompactionResult(int messages, long bytes)
+        {
+            mMessages = messages;
+            mBytes = bytes;
+        }
+
+        public int getMessages()
+        {
+            return mMessages;
+        }
+
+        public long getBytes()
+        {
+            return mBytes;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package superchat.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Remember the ids of the last accepted messages, to drop the ones resent
+ * by the clients. Bounded: the oldest ids are forgotten first.
+ * Configured with the "superchat.dedup.capacity" system property.
+ */
+public class IdempotencyCache
+{
+    private final LinkedHashMap<String, Boolean> mIds;
+    private final int mCapacity;
+
+    public IdempotencyCache()
+    {
+        this(Integer.getInteger("superchat.dedup.capacity", 10000));
+    }
+
+    public IdempotencyCache(int capacity)
+    {
+        mCapacity = capacity;
+        mIds = new LinkedHashMap<>(16, 0.75f, false)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Return the number of ids remembered at most.
+     */
+    public int getCapacity()
+    {
+        return mCapacity;
+    }
+
+    public synchronized boolean contains(String id)
+    {
+        return mIds.containsKey(id);
+    }
+
+    public synchronized void add(String id)
+    {
+        mIds.put(id, Boolean.TRUE);
+    }
+}
@@ -0,0 +1,144 @@
+package superchat.server;
+
+import superchat.data.Connection;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The connected users, split in shards by pseudo (see "Connection.shardOf"),
+ * each with its own lock: the connections of different shards don't wait
+ * for each other to check their pseudo, and a pseudo is reserved by its
+ * shard only. The users are read without locking.
+ */
+public class PresenceRegistry
+{
+    private final Shard[] mShards;
+
+    public PresenceRegistry(int shards)
+    {
+        mShards = new Shard[shards];
+
+        for (int i = 0; i < shards; i++)
+        {
+            mShards[i] = new Shard();
+        }
+    }
+
+    public int getShardCount()
+    {
+        return mShards.length;
+    }
+
+    /**
+     * Return the lock of the shard of "name" (held to check and change her/his
+     * presence at once).
+     */
+    Object lockOf(String name)
+    {
+        return shardOf(name);
+    }
+
+    /**
+     * Add the user if absent, and return true if so.
+     */
+    boolean add(String name)
+    {
+        Shard shard = shardOf(name);
+
+        if (shard.mUsers.putIfAbsent(name, new UserSession(name)) != null)
+        {
+            return false;
+        }
+
+        shard.mVersion.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Remove the user if present, and return true if so.
+     */
+    boolean remove(String name)
+    {
+        Shard shard = shardOf(name);
+
+        if (shard.mUsers.remove(name) == null)
+        {
+            return false;
+        }
+
+        shard.mVersion.incrementAndGet();
+
+        return true;
+    }
+
+    boolean contains(String name)
+    {
+        return shardOf(name).mUsers.containsKey(name);
+    }
+
+    /**
+     * Return the connected user named "name", or null.
+     */
+    UserSession get(String name)
+    {
+        return shardOf(name).mUsers.get(name);
+    }
+
+    /**
+     * Return a copy of the connected user pseudos (of all the shards).
+     */
+    ArrayList<String> names()
+    {
+        ArrayList<String> names = new ArrayList<>();
+
+        for (Shard shard : mShards)
+        {
+            names.addAll(shard.mUsers.keySet());
+        }
+
+        return names;
+    }
+
+    /**
+     * Return a copy of the connected user pseudos of "shard".
+     */
+    public ArrayList<String> namesOf(int shard)
+    {
+        return new ArrayList<>(mShards[shard].mUsers.keySet());
+    }
+
+    /**
+     * Return the number of changes of "shard" (to know if it changed).
+     */
+    public long getVersion(int shard)
+    {
+        return mShards[shard].mVersion.get();
+    }
+
+    void clear()
+    {
+        for (Shard shard : mShards)
+        {
+            shard.mUsers.clear();
+            shard.mVersion.incrementAndGet();
+        }
+    }
+
+    private Shard shardOf(String name)
+    {
+        return mShards[Connection.shardOf(name, mShards.length)];
+    }
+
+    /**
+     * The users of a shard (the shard being its own lock).
+     */
+    private static class Shard
+    {
+        final ConcurrentHashMap<String, UserSession> mUsers = new ConcurrentHashMap<>();
+        final AtomicLong mVersion = new AtomicLong();
+    }
+}
@@ -0,0 +1,95 @@
+package superchat.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Declaration of the queues the server consumes (requests and messages):
+ * transient (lost with the broker, the fastest), or durable so that the
+ * waiting requests and messages survive a server or broker restart, in a
+ * classic, lazy (kept on disk rather than in memory) or quorum (replicated)
+ * queue. Configured with the "superchat.queues.durable" and
+ * "superchat.queues.type" system properties.
+ */
+public class QueueConfig
+{
+    public static final String TYPE_CLASSIC = "classic";
+    public static final String TYPE_LAZY = "lazy";
+    public static final String TYPE_QUORUM = "quorum";
+
+    private final boolean mIsDurable;
+    private final String mType;
+
+    public QueueConfig(boolean isDurable, String type)
+    {
+        if (! TYPE_CLASSIC.equals(type) && ! TYPE_LAZY.equals(type)
+                && ! TYPE_QUORUM.equals(type))
+        {
+            throw new IllegalArgumentException("Unknown queue type: " + type);
+        }
+
+        // Quorum queues are always durable.
+        mIsDurable = isDurable || TYPE_QUORUM.equals(type);
+        mType = type;
+    }
+
+    public static QueueConfig fromSystemProperties()
+    {
+        return new QueueConfig(
+                Boolean.getBoolean("superchat.queues.durable"),
+                System.getProperty("superchat.queues.type", TYPE_CLASSIC));
+    }
+
+    public boolean isDurable()
+    {
+        return mIsDurable;
+    }
+
+    public String getType()
+    {
+        return mType;
+    }
+
+    /**
+     * Return the arguments of the queue declarations.
+     */
+    public Map<String, Object> getArguments()
+    {
+        Map<String, Object> arguments = new HashMap<>();
+
+        if (TYPE_LAZY.equals(mType))
+        {
+            arguments.put("x-queue-mode", "lazy");
+        }
+        else if (TYPE_QUORUM.equals(mType))
+        {
+            arguments.put("x-queue-type", "quorum");
+        }
+
+        return arguments;
+    }
+
+    /**
+     * Return the arguments of the declaration of a queue whose messages
+     * have a priority up to "maxPriority" (ignored by the quorum queues,
+     * which don't support it).
+     */
+    public Map<String, Object> getArguments(int maxPriority)
+    {
+        Map<String, Object> arguments = getArguments();
+
+        if (! TYPE_QUORUM.equals(mType))
+        {
+            arguments.put("x-max-priority", maxPriority);
+        }
+
+        return arguments;
+    }
+
+    @Override
+    public String toString()
+    {
+        return (mIsDurable ? "durable " : "transient ") + mType;
+    }
+}
@@ -0,0 +1,244 @@
+package superchat.server;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.MessageProperties;
+import org.apache.commons.lang3.SerializationUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Stream the state changes of the primary server to the standby one (see
+ * "Standby"), in batches (an ArrayList of changes) on a durable queue,
+ * published as persistent and confirmed by the broker. On request of the
+ * standby, a snapshot of the state is sent first, in chunks, followed by
+ * the changes after it. A batch which cannot be sent is dropped: the
+ * standby then asks for a snapshot when it sees the missing changes.
+ * The changes waiting to be sent are bounded: beyond, they are dropped,
+ * and a snapshot is sent instead (covering them).
+ */
+public class Replicator implements ChatState.ChangeListener
+{
+    // Maximum number of changes in a batch.
+    private final static int BATCH_SIZE = 256;
+    // Size of the snapshot chunks (in bytes).
+    private final static int CHUNK_SIZE = 256 * 1024;
+    // Maximum time to wait for the broker to confirm a publish (in ms).
+    private final static int CONFIRM_TIMEOUT = 30000;
+    // Maximum number of changes waiting to be sent.
+    private final static int MAX_PENDING = 100000;
+    // Time to wait for a change before checking for an overflow (in ms).
+    private final static long POLL_TIMEOUT = 1000;
+
+    private final ChatState mState;
+    private final Channel mChannel;
+    private final String mQueue;
+    // Changes and cuts (for the snapshots) to send, in the log order.
+    private final BlockingQueue<Object> mPending;
+    // Set when changes were dropped (the queue being full), until a cut.
+    private volatile boolean mIsOverflowed;
+    private final Thread mThread;
+
+    /**
+     * Replicate the changes of "state" to "queue", through "channel".
+     */
+    public Replicator(ChatState state, Channel channel, String queue) throws IOException
+    {
+        mState = state;
+        mChannel = channel;
+        mQueue = queue;
+        // A cut is added once cleared (under the state lock), so never dropped.
+        mPending = new LinkedBlockingQueue<>(MAX_PENDING);
+        mThread = new Thread(this::run, "replicator");
+        mThread.setDaemon(true);
+        mChannel.confirmSelect();
+    }
+
+    /**
+     * Start following the state changes.
+     */
+    public void start()
+    {
+        mState.setListener(this);
+        mThread.start();
+    }
+
+    /**
+     * Send a snapshot of the state, followed by the changes after it.
+     */
+    public void sendSnapshot() throws IOException
+    {
+        mState.cutForListener();
+    }
+
+    /**
+     * Stop following the state changes, once the waiting ones sent.
+     */
+    public void stop()
+    {
+        mState.setListener(null);
+        mThread.interrupt();
+
+        try
+        {
+            mThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onChange(StateChange change)
+    {
+        // Dropped until the next cut once overflowed (it covers them).
+        if (! mIsOverflowed && ! mPending.offer(change))
+        {
+            mIsOverflowed = true;
+        }
+    }
+
+    @Override
+    public void onCut(ChatState.Cut cut)
+    {
+        // The waiting changes are covered by the cut.
+        mPending.clear();
+        mPending.add(cut);
+        mIsOverflowed = false;
+    }
+
+    private void run()
+    {
+        ArrayList<StateChange> batch = new ArrayList<>();
+
+        while (true)
+        {
+            Object next;
+
+            try
+            {
+                if (mIsOverflowed)
+                {
+                    cutForOverflow();
+                }
+
+                next = mPending.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+
+                if (next == null)
+                {
+                    continue;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Stopping: send what is left.
+                next = mPending.poll();
+
+                if (next == null)
+                {
+                    return;
+                }
+            }
+
+            try
+            {
+                if (next instanceof ChatState.Cut)
+                {
+                    publishSnapshot((ChatState.Cut) next);
+                    continue;
+                }
+
+                batch.add((StateChange) next);
+                // With the ones waiting meanwhile (up to a cut).
+                while (batch.size() < BATCH_SIZE && mPending.peek() instanceof StateChange)
+                {
+                    batch.add((StateChange) mPending.poll());
+                }
+
+                publish(batch);
+                mChannel.waitForConfirmsOrDie(CONFIRM_TIMEOUT);
+            }
+            catch (IOException | TimeoutException e)
+            {
+                System.err.println("Error: cannot replicate " + Math.max(batch.size(), 1)
+                        + " changes " + e);
+            }
+            catch (InterruptedException e)
+            {
+                // Stopping: the rest is sent by the next loops.
+                Thread.currentThread().interrupt();
+            }
+
+            batch = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Replace the dropped changes (the standby being too far behind) by a
+     * snapshot, the changes after it following.
+     */
+    private void cutForOverflow()
+    {
+        System.err.println("Error: more than " + MAX_PENDING + " changes waiting for "
+                + "the standby server, sending a snapshot instead.");
+
+        try
+        {
+            mState.cutForListener();
+        }
+        catch (IOException e)
+        {
+            // Tried again at the next loop.
+            System.err.println("Error: cannot capture the state to replicate " + e);
+        }
+    }
+
+    private void publishSnapshot(ChatState.Cut cut)
+            throws IOException, TimeoutException, InterruptedException
+    {
+        long start = System.nanoTime();
+        int[] index = { 0 };
+        // Published each time the buffer is full.
+        OutputStream chunks = new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException
+            {
+                publish(new SnapshotChunk(index[0]++, false,
+                        Arrays.copyOfRange(bytes, offset, offset + length)));
+            }
+        };
+
+        OutputStream stream = new BufferedOutputStream(chunks, CHUNK_SIZE);
+        Snapshotter.writeTo(cut, stream);
+        stream.flush();
+        publish(new SnapshotChunk(index[0], true, new byte[0]));
+        // All the chunks at once.
+        mChannel.waitForConfirmsOrDie(CONFIRM_TIMEOUT);
+
+        System.out.println("Replication: snapshot up to record " + cut.mSeq + " sent in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms.");
+    }
+
+    private void publish(Serializable payload) throws IOException
+    {
+        mChannel.basicPublish("", mQueue, MessageProperties.PERSISTENT_BASIC,
+                SerializationUtils.serialize(payload));
+    }
+}
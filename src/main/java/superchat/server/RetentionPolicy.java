@@ -0,0 +1,47 @@
+package superchat.server;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Limits of the message history of a room (a limit <= 0 means no limit).
+ * Configured with the "superchat.history.maxAgeHours",
+ * "superchat.history.maxCount" and "superchat.history.maxBytes"
+ * system properties.
+ */
+public class RetentionPolicy
+{
+    private final long mMaxAgeMillis;
+    private final int mMaxCount;
+    private final long mMaxBytes;
+
+    public RetentionPolicy(long maxAgeMillis, int maxCount, long maxBytes)
+    {
+        mMaxAgeMillis = maxAgeMillis;
+        mMaxCount = maxCount > 0 ? maxCount : Integer.MAX_VALUE;
+        mMaxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    }
+
+    public static RetentionPolicy fromSystemProperties()
+    {
+        return new RetentionPolicy(
+                TimeUnit.HOURS.toMillis(Long.getLong("superchat.history.maxAgeHours", 0)),
+                Integer.getInteger("superchat.history.maxCount", 0),
+                Long.getLong("superchat.history.maxBytes", 0));
+    }
+
+    public long getMaxAgeMillis()
+    {
+        return mMaxAgeMillis;
+    }
+
+    public int getMaxCount()
+    {
+        return mMaxCount;
+    }
+
+    public long getMaxBytes()
+    {
+        return mMaxBytes;
+    }
+}
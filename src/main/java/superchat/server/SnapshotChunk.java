@@ -0,0 +1,43 @@
+package superchat.server;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * A part of a snapshot of the state sent to the standby server (in the
+ * snapshot file format), the snapshot being sent as a stream of chunks.
+ */
+class SnapshotChunk implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = 5046691379212208037L;
+
+    // Position of the chunk in the snapshot (from 0).
+    private final int mIndex;
+    // True if it's the last chunk of the snapshot.
+    private final boolean mIsLast;
+    private final byte[] mData;
+
+    SnapshotChunk(int index, boolean isLast, byte[] data)
+    {
+        mIndex = index;
+        mIsLast = isLast;
+        mData = data;
+    }
+
+    int getIndex()
+    {
+        return mIndex;
+    }
+
+    boolean isLast()
+    {
+        return mIsLast;
+    }
+
+    byte[] getData()
+    {
+        return mData;
+    }
+}
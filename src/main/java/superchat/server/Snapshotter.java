@@ -0,0 +1,265 @@
+package superchat.server;
+
+import org.apache.commons.lang3.SerializationUtils;
+import superchat.data.Message;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Periodically save the server state in a snapshot file, and restore it
+ * on launch by loading the last snapshot and replaying the log after it.
+ * The snapshot is written in a temporary file, then atomically renamed,
+ * so a crash while writing keeps the previous one.
+ */
+public class Snapshotter
+{
+    private final static int FORMAT_VERSION = 1;
+    // Names of the snapshot file and log directory (in the home directory).
+    private final static String SNAPSHOT_NAME = "snapshot";
+    private final static String LOG_NAME = "log";
+
+    private final ChatState mState;
+    private final Path mSnapshotPath;
+    private final Path mTemporaryPath;
+    private final Path mLogDirectory;
+    private final ScheduledExecutorService mExecutor;
+    // Sequence number of the last record included in the snapshot.
+    private long mSnapshotSeq;
+
+    public Snapshotter(ChatState state, Path directory)
+    {
+        mState = state;
+        mSnapshotPath = directory.resolve(SNAPSHOT_NAME);
+        mTemporaryPath = directory.resolve("snapshot.tmp");
+        mLogDirectory = directory.resolve(LOG_NAME);
+        mExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+                {
+                    Thread thread = new Thread(runnable, "snapshotter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    /**
+     * Return true if there is a snapshot or a log to restore.
+     */
+    public boolean exists()
+    {
+        return Files.exists(mSnapshotPath) || Files.isDirectory(mLogDirectory);
+    }
+
+    /**
+     * Load the last snapshot, replay the log after it, and start logging
+     * the next changes.
+     */
+    public void restore() throws IOException
+    {
+        HistoryLog.RecordHandler handler = new HistoryLog.RecordHandler()
+                {
+                    @Override
+                    public void onMessage(Message message, long time)
+                    {
+                        mState.restoreMessage(message, time);
+                    }
+
+                    @Override
+                    public void onPresence(String name, boolean isConnecting)
+                    {
+                        if (isConnecting)
+                        {
+                            mState.addUser(name);
+                        }
+                        else
+                        {
+                            mState.removeUser(name);
+                        }
+                    }
+                };
+        long seq = 0;
+
+        if (Files.exists(mSnapshotPath))
+        {
+            seq = read(mSnapshotPath, handler);
+        }
+
+        mSnapshotSeq = seq;
+        long lastSeq = HistoryLog.replay(mLogDirectory, seq, handler);
+        mState.setLog(new HistoryLog(mLogDirectory, lastSeq + 1));
+    }
+
+    /**
+     * Snapshot every "period" seconds
+     * (set by the "superchat.snapshot.seconds" system property).
+     */
+    public void start()
+    {
+        long period = Long.getLong("superchat.snapshot.seconds", 60);
+        mExecutor.scheduleWithFixedDelay(this::snapshot, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the periodic snapshots, and take a last one.
+     */
+    public void stop()
+    {
+        mExecutor.shutdown();
+
+        try
+        {
+            mExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        snapshot();
+    }
+
+    /**
+     * Take a snapshot now (if something changed since the last one).
+     */
+    public synchronized void snapshot()
+    {
+        try
+        {
+            long start = System.nanoTime();
+            ChatState.Cut cut = mState.cut();
+
+            if (cut.mSeq == mSnapshotSeq)
+            {
+                return;
+            }
+
+            write(cut);
+            Files.move(mTemporaryPath, mSnapshotPath,
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            mSnapshotSeq = cut.mSeq;
+            // The log before the cut is no longer needed.
+            mState.deleteLogUpTo(cut.mSeq);
+
+            System.out.println("Snapshot: up to record " + cut.mSeq + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: cannot save the server snapshot " + e);
+        }
+    }
+
+    /**
+     * Replace the state by the one of the snapshot "file" (e.g. received
+     * from the primary server), dropping the local snapshot and log.
+     */
+    public synchronized void install(Path file) throws IOException
+    {
+        mState.closeLog();
+        HistoryLog.deleteAll(mLogDirectory);
+        Files.move(file, mSnapshotPath,
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        mState.clear();
+        restore();
+    }
+
+    private void write(ChatState.Cut cut) throws IOException
+    {
+        try (FileOutputStream file = new FileOutputStream(mTemporaryPath.toFile()))
+        {
+            writeTo(cut, file);
+            // Make it durable before the rename.
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * Write the state "cut" in "output" (in the snapshot file format).
+     */
+    static void writeTo(ChatState.Cut cut, OutputStream output) throws IOException
+    {
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(output));
+        stream.writeInt(FORMAT_VERSION);
+        stream.writeLong(cut.mSeq);
+        // Presence.
+        stream.writeInt(cut.mUserNames.size());
+
+        for (String name : cut.mUserNames)
+        {
+            stream.writeUTF(name);
+        }
+        // History, then the conversations (each message is preceded by
+        // true, and the end by false).
+        HistoryStore.EntryConsumer writer = (message, time) ->
+                {
+                    byte[] bytes = SerializationUtils.serialize(message);
+                    stream.writeBoolean(true);
+                    stream.writeLong(time);
+                    stream.writeInt(bytes.length);
+                    stream.write(bytes);
+                };
+        cut.mHistory.forEach(writer);
+
+        for (HistoryStore.Cut conversation : cut.mConversations)
+        {
+            conversation.forEach(writer);
+        }
+
+        stream.writeBoolean(false);
+        stream.flush();
+    }
+
+    /**
+     * Read the state saved in "directory" (its snapshot, then the log after
+     * it) without loading it, giving its records to "handler" one at a
+     * time, and return the sequence number of the last one.
+     */
+    public static long readSaved(Path directory, HistoryLog.RecordHandler handler)
+            throws IOException
+    {
+        Path snapshot = directory.resolve(SNAPSHOT_NAME);
+        long seq = Files.exists(snapshot) ? read(snapshot, handler) : 0;
+
+        return HistoryLog.replay(directory.resolve(LOG_NAME), seq, handler);
+    }
+
+    /**
+     * Read the snapshot "file", giving its connected users and its messages
+     * (history, then conversations) to "handler" one at a time, and return
+     * its sequence number.
+     */
+    private static long read(Path file, HistoryLog.RecordHandler handler) throws IOException
+    {
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file.toFile()))))
+        {
+            if (stream.readInt() != FORMAT_VERSION)
+            {
+                throw new IOException("unknown snapshot format");
+            }
+
+            long seq = stream.readLong();
+
+            for (int i = stream.readInt(); i > 0; i--)
+            {
+                handler.onPresence(stream.readUTF(), true);
+            }
+
+            while (stream.readBoolean())
+            {
+                long time = stream.readLong();
+                byte[] bytes = new byte[stream.readInt()];
+                stream.readFully(bytes);
+                handler.onMessage(SerializationUtils.deserialize(bytes), time);
+            }
+
+            return seq;
+        }
+    }
+}
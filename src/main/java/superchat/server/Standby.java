@@ -0,0 +1,280 @@
+package superchat.server;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+import org.apache.commons.lang3.SerializationUtils;
+import superchat.data.Message;
+import superchat.data.ReplicationRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+
+/**
+ * Keep the state of a standby server up to date with the primary one, by
+ * applying the changes it replicates (see "Replicator"), until it can take
+ * over (i.e. the primary is gone). On start, and when changes are missing,
+ * a snapshot of the primary state is requested and installed first.
+ * The replication queue is polled (not consumed), so that the changes left
+ * can be applied before taking over.
+ */
+public class Standby
+{
+    // Time to wait when there is nothing to apply (in ms).
+    private final static long POLL_DELAY = 20;
+    // Time between two attempts to take over (in ms).
+    private final static long LEASE_PERIOD = 5000;
+    // Time to wait for a requested snapshot before asking again (in ms).
+    private final static long SNAPSHOT_TIMEOUT = 30000;
+    // Time between two logs of the replication lag (in ms).
+    private final static long LAG_PERIOD = 10000;
+
+    private final ChatState mState;
+    private final Snapshotter mSnapshotter;
+    private final Channel mChannel;
+    private final String mQueue;
+    private final String mRequestQueue;
+    private final Path mSnapshotPath;
+    // Tells whether this server can take over (and takes it if so).
+    private final Lease mLease;
+    // Given the applied messages (e.g. to know their ids).
+    private final Consumer<Message> mOnMessage;
+    private volatile boolean mIsStopped;
+
+    // When the last snapshot was requested (0 if none is awaited).
+    private long mRequestTime;
+    // The snapshot being received (null if none).
+    private OutputStream mSnapshot;
+    private int mNextChunk;
+    // The last change applied, and the number of batches still waiting.
+    private StateChange mLastChange;
+    private long mWaiting;
+
+    /**
+     * Apply the changes received from "queue" (through "channel") to "state",
+     * asking for snapshots on "requestQueue" (the primary request queue).
+     */
+    public Standby(ChatState state, Snapshotter snapshotter, Channel channel, String queue,
+                   String requestQueue, Path directory, Lease lease, Consumer<Message> onMessage)
+    {
+        mState = state;
+        mSnapshotter = snapshotter;
+        mChannel = channel;
+        mQueue = queue;
+        mRequestQueue = requestQueue;
+        mSnapshotPath = directory.resolve("replica.tmp");
+        mLease = lease;
+        mOnMessage = onMessage;
+    }
+
+    /**
+     * Follow the primary server until this one takes over (and return true,
+     * once all the received changes are applied), or is stopped.
+     */
+    public boolean run() throws IOException
+    {
+        // Its state may be older, or from another primary.
+        requestSnapshot();
+        long nextLease = System.currentTimeMillis() + LEASE_PERIOD;
+        long nextLag = System.currentTimeMillis() + LAG_PERIOD;
+
+        while (! mIsStopped)
+        {
+            long now = System.currentTimeMillis();
+
+            if (now >= nextLease)
+            {
+                nextLease = now + LEASE_PERIOD;
+
+                if (mLease.take())
+                {
+                    System.out.println("Replication: the primary server is gone, taking over...");
+                    // The changes it sent before leaving.
+                    while (poll())
+                    {
+                    }
+
+                    logLag();
+                    return true;
+                }
+            }
+
+            if (now >= nextLag)
+            {
+                nextLag = now + LAG_PERIOD;
+                logLag();
+            }
+
+            if (mRequestTime != 0 && now - mRequestTime > SNAPSHOT_TIMEOUT)
+            {
+                requestSnapshot();
+            }
+
+            if (! poll())
+            {
+                sleep(POLL_DELAY);
+            }
+        }
+
+        return false;
+    }
+
+    public void stop()
+    {
+        mIsStopped = true;
+    }
+
+    /**
+     * Apply the next received batch or snapshot chunk, and return false if
+     * there was none.
+     */
+    private boolean poll() throws IOException
+    {
+        GetResponse response = mChannel.basicGet(mQueue, false);
+
+        if (response == null)
+        {
+            mWaiting = 0;
+            return false;
+        }
+
+        mWaiting = response.getMessageCount();
+        Object data = SerializationUtils.deserialize(response.getBody());
+
+        if (data instanceof SnapshotChunk)
+        {
+            onChunk((SnapshotChunk) data);
+        }
+        else
+        {
+            @SuppressWarnings("unchecked")
+            List<StateChange> changes = (List<StateChange>) data;
+            onChanges(changes);
+        }
+
+        mChannel.basicAck(response.getEnvelope().getDeliveryTag(), false);
+
+        return true;
+    }
+
+    private void onChanges(List<StateChange> changes) throws IOException
+    {
+        for (StateChange change : changes)
+        {
+            if (! mState.apply(change))
+            {
+                // Missing changes (dropped by the primary, or by the queue
+                // when too long): the next ones cannot be applied either.
+                if (mRequestTime == 0)
+                {
+                    System.err.println("Error: replicated changes missing before record "
+                            + change.getSeq() + ", asking for a snapshot.");
+                    requestSnapshot();
+                }
+
+                return;
+            }
+
+            mLastChange = change;
+
+            if (change.getMessage() != null)
+            {
+                mOnMessage.accept(change.getMessage());
+            }
+        }
+    }
+
+    private void onChunk(SnapshotChunk chunk) throws IOException
+    {
+        if (chunk.getIndex() == 0)
+        {
+            closeSnapshot();
+            mSnapshot = Files.newOutputStream(mSnapshotPath);
+            mNextChunk = 0;
+        }
+
+        if (mSnapshot == null || chunk.getIndex() != mNextChunk)
+        {
+            // The start of the snapshot was missed (e.g. requested before).
+            closeSnapshot();
+            return;
+        }
+
+        mSnapshot.write(chunk.getData());
+        mNextChunk++;
+
+        if (chunk.isLast())
+        {
+            mSnapshot.close();
+            mSnapshot = null;
+            mSnapshotter.install(mSnapshotPath);
+            mRequestTime = 0;
+            mLastChange = null;
+            System.out.println("Replication: snapshot installed, next record "
+                    + mState.nextSeq() + ".");
+        }
+    }
+
+    private void closeSnapshot() throws IOException
+    {
+        if (mSnapshot != null)
+        {
+            mSnapshot.close();
+            mSnapshot = null;
+        }
+    }
+
+    /**
+     * Ask the primary server for a snapshot of its state (handled with its
+     * bulk requests).
+     */
+    private void requestSnapshot() throws IOException
+    {
+        mChannel.basicPublish("", mRequestQueue, null,
+                SerializationUtils.serialize(new ReplicationRequest(mState.nextSeq())));
+        mRequestTime = System.currentTimeMillis();
+    }
+
+    private void logLag()
+    {
+        if (mLastChange == null)
+        {
+            System.out.println("Replication: at record " + (mState.nextSeq() - 1)
+                    + (mRequestTime != 0 ? ", waiting for a snapshot." : "."));
+            return;
+        }
+
+        // The time since the last change is the lag while changes are waiting.
+        System.out.println("Replication: at record " + mLastChange.getSeq() + " (made "
+                + (System.currentTimeMillis() - mLastChange.getTime()) + " ms ago), "
+                + mWaiting + " batches waiting.");
+    }
+
+    private static void sleep(long delay)
+    {
+        try
+        {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The right to be the primary server.
+     */
+    public interface Lease
+    {
+        /**
+         * Take the lease if it's free, and return true if so.
+         */
+        boolean take() throws IOException;
+    }
+}
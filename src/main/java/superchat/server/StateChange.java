@@ -0,0 +1,71 @@
+package superchat.server;
+
+import superchat.data.Message;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+
+/**
+ * A change of the server state (a message, a connection or a disconnection)
+ * at its log sequence number, as replicated to the standby server.
+ */
+class StateChange implements Serializable
+{
+    @Serial
+    private static final long serialVersionUID = 7730516212894016448L;
+
+    private final long mSeq;
+    // One of the "HistoryLog.TYPE_" constants.
+    private final byte mType;
+    // When the change was made (ms since epoch).
+    private final long mTime;
+    // The message, or the user name of a connection or disconnection.
+    private final Message mMessage;
+    private final String mName;
+
+    private StateChange(long seq, byte type, long time, Message message, String name)
+    {
+        mSeq = seq;
+        mType = type;
+        mTime = time;
+        mMessage = message;
+        mName = name;
+    }
+
+    static StateChange message(long seq, Message message, long time)
+    {
+        return new StateChange(seq, HistoryLog.TYPE_MESSAGE, time, message, null);
+    }
+
+    static StateChange presence(long seq, String name, boolean isConnecting, long time)
+    {
+        return new StateChange(seq, isConnecting ?
+                HistoryLog.TYPE_CONNECTION : HistoryLog.TYPE_DISCONNECTION, time, null, name);
+    }
+
+    long getSeq()
+    {
+        return mSeq;
+    }
+
+    byte getType()
+    {
+        return mType;
+    }
+
+    long getTime()
+    {
+        return mTime;
+    }
+
+    Message getMessage()
+    {
+        return mMessage;
+    }
+
+    String getName()
+    {
+        return mName;
+    }
+}
@@ -0,0 +1,72 @@
+package superchat.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Interned strings (user names, display times), each one stored once and
+ * referenced by an int id, so that the history columns only hold the ids.
+ * Ids are never removed (there are few distinct values); they are read
+ * without locking.
+ */
+class StringDictionary
+{
+    private final ConcurrentHashMap<String, Integer> mIds;
+    // Values by id (the array is replaced when full).
+    private volatile String[] mValues;
+    private int mSize;
+
+    StringDictionary()
+    {
+        mIds = new ConcurrentHashMap<>();
+        mValues = new String[64];
+    }
+
+    /**
+     * Return the id of "value", adding it if unknown.
+     */
+    int idOf(String value)
+    {
+        Integer id = mIds.get(value);
+
+        if (id != null)
+        {
+            return id;
+        }
+
+        synchronized (this)
+        {
+            id = mIds.get(value);
+
+            if (id != null)
+            {
+                return id;
+            }
+
+            String[] values = mValues;
+
+            if (mSize == values.length)
+            {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+
+            values[mSize] = value;
+            // Publish the value before its id.
+            mValues = values;
+            mIds.put(value, mSize);
+
+            return mSize++;
+        }
+    }
+
+    String valueOf(int id)
+    {
+        return mValues[id];
+    }
+
+    int size()
+    {
+        return mIds.size();
+    }
+}
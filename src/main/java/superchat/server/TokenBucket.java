@@ -0,0 +1,60 @@
+package superchat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Lock-free token bucket, refilled at a sustained rate up to a burst size.
+ * Implemented as its equivalent "virtual scheduling" form: a single
+ * theoretical arrival time, moved forward by one emission interval per
+ * accepted token, so that one compare-and-set is enough.
+ * Configured with the "superchat.rate.perSecond" and "superchat.rate.burst"
+ * system properties.
+ */
+public class TokenBucket
+{
+    // Time (ns) between two tokens.
+    private final long mInterval;
+    // How far the theoretical arrival time can be ahead of now (ns).
+    private final long mTolerance;
+    // Theoretical arrival time of the next token (ns, System.nanoTime() based).
+    private final AtomicLong mArrival;
+
+    public TokenBucket(double perSecond, int burst)
+    {
+        mInterval = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+        mTolerance = mInterval * (Math.max(burst, 1) - 1);
+        mArrival = new AtomicLong(System.nanoTime());
+    }
+
+    public static TokenBucket fromSystemProperties()
+    {
+        return new TokenBucket(
+                Double.parseDouble(System.getProperty("superchat.rate.perSecond", "5")),
+                Integer.getInteger("superchat.rate.burst", 20));
+    }
+
+    /**
+     * Take a token at "now" (ns, System.nanoTime() based), and return
+     * false if there is none left.
+     */
+    public boolean tryAcquire(long now)
+    {
+        while (true)
+        {
+            long arrival = mArrival.get();
+            long next = Math.max(arrival - now, 0) + now;
+
+            if (next - now > mTolerance)
+            {
+                return false;
+            }
+
+            if (mArrival.compareAndSet(arrival, next + mInterval))
+            {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package superchat.server;
+
+
+/**
+ * A connected user, with her/his own state (kept in the presence registry).
+ */
+public class UserSession
+{
+    private final String mName;
+    // Limits the messages she/he can send.
+    private final TokenBucket mBucket;
+
+    public UserSession(String name)
+    {
+        mName = name;
+        mBucket = TokenBucket.fromSystemProperties();
+    }
+
+    public String getName()
+    {
+        return mName;
+    }
+
+    public TokenBucket getBucket()
+    {
+        return mBucket;
+    }
+}
@@ -0,0 +1,520 @@
+package superchat.tools;
+
+import superchat.data.Attachment;
+import superchat.data.Message;
+import superchat.server.HistoryLog;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The formats of an exported history: a record per message (written and
+ * read one at a time), with the fields of "FIELDS" (missing ones being
+ * null in JSON, and empty in CSV).
+ */
+enum HistoryFormat
+{
+    /**
+     * A JSON object per line.
+     */
+    NDJSON
+            {
+                @Override
+                void writeHeader(Writer writer)
+                {
+                }
+
+                @Override
+                void write(Writer writer, Message message, long time) throws IOException
+                {
+                    String[] values = valuesOf(message, time);
+                    writer.write('{');
+
+                    for (int i = 0; i < FIELDS.length; i++)
+                    {
+                        writer.write(i == 0 ? "\"" : ",\"");
+                        writer.write(FIELDS[i]);
+                        writer.write("\":");
+
+                        if (values[i] == null || isNumber(i))
+                        {
+                            writer.write(String.valueOf(values[i]));
+                        }
+                        else
+                        {
+                            writeJsonString(writer, values[i]);
+                        }
+                    }
+
+                    writer.write("}\n");
+                }
+
+                @Override
+                void read(Reader reader, HistoryLog.RecordHandler handler) throws IOException
+                {
+                    BufferedReader lines = new BufferedReader(reader);
+                    String line;
+                    int number = 0;
+
+                    while ((line = lines.readLine()) != null)
+                    {
+                        number++;
+
+                        if (! line.isBlank())
+                        {
+                            Map<String, String> fields = new HashMap<>();
+                            new JsonParser(line, number).parseObject(fields);
+                            give(fields, handler);
+                        }
+                    }
+                }
+            },
+
+    /**
+     * Comma separated values (RFC 4180), with a header line.
+     */
+    CSV
+            {
+                @Override
+                void writeHeader(Writer writer) throws IOException
+                {
+                    writer.write(String.join(",", FIELDS));
+                    writer.write("\r\n");
+                }
+
+                @Override
+                void write(Writer writer, Message message, long time) throws IOException
+                {
+                    String[] values = valuesOf(message, time);
+
+                    for (int i = 0; i < FIELDS.length; i++)
+                    {
+                        if (i > 0)
+                        {
+                            writer.write(',');
+                        }
+
+                        if (values[i] != null)
+                        {
+                            writeCsvValue(writer, values[i]);
+                        }
+                    }
+
+                    writer.write("\r\n");
+                }
+
+                @Override
+                void read(Reader reader, HistoryLog.RecordHandler handler) throws IOException
+                {
+                    CsvParser parser = new CsvParser(reader);
+                    // The columns may be in any order.
+                    String[] header = parser.next();
+                    String[] values;
+
+                    while (header != null && (values = parser.next()) != null)
+                    {
+                        Map<String, String> fields = new HashMap<>();
+
+                        for (int i = 0; i < header.length && i < values.length; i++)
+                        {
+                            fields.put(header[i], values[i].isEmpty() ? null : values[i]);
+                        }
+
+                        give(fields, handler);
+                    }
+                }
+            };
+
+    final static String[] FIELDS = { "seq", "time", "name", "to", "id", "clock", "content",
+            "attachmentHash", "attachmentName", "attachmentSize" };
+
+    /**
+     * Write what comes before the records (if anything).
+     */
+    abstract void writeHeader(Writer writer) throws IOException;
+
+    /**
+     * Write the "message" received at "time" (ms since epoch).
+     */
+    abstract void write(Writer writer, Message message, long time) throws IOException;
+
+    /**
+     * Read the records one at a time, giving them to "handler" (with their
+     * reception time, or now if missing).
+     */
+    abstract void read(Reader reader, HistoryLog.RecordHandler handler) throws IOException;
+
+    /**
+     * Return the values of the fields of "message" (null if missing).
+     */
+    private static String[] valuesOf(Message message, long time)
+    {
+        Attachment attachment = message.getAttachment();
+
+        return new String[] { String.valueOf(message.getSeq()), String.valueOf(time),
+                message.getName(), message.getTo(), message.getId(), message.getTime(),
+                message.getContent(),
+                attachment != null ? attachment.getHash() : null,
+                attachment != null ? attachment.getFileName() : null,
+                attachment != null ? String.valueOf(attachment.getSize()) : null };
+    }
+
+    /**
+     * Give the message of the record "fields" to "handler" (its position
+     * being set by the store).
+     */
+    private static void give(Map<String, String> fields, HistoryLog.RecordHandler handler)
+            throws IOException
+    {
+        if (fields.get("name") == null || fields.get("content") == null)
+        {
+            throw new IOException("record without name or content: " + fields);
+        }
+
+        Message message = new Message(fields.get("name"), fields.get("content"),
+                fields.get("clock"), fields.get("id"), fields.get("to"));
+
+        try
+        {
+            if (fields.get("attachmentHash") != null)
+            {
+                message = message.withAttachment(new Attachment(fields.get("attachmentHash"),
+                        fields.get("attachmentName"), Long.parseLong(fields.get("attachmentSize"))));
+            }
+
+            String time = fields.get("time");
+            handler.onMessage(message, time != null ?
+                    Long.parseLong(time) : System.currentTimeMillis());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("invalid number in the record: " + fields, e);
+        }
+    }
+
+    private static boolean isNumber(int field)
+    {
+        return field == 0 || field == 1 || field == 9;
+    }
+
+    private static void writeJsonString(Writer writer, String value) throws IOException
+    {
+        writer.write('"');
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            switch (c)
+            {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        writer.write(c);
+                    }
+                    break;
+            }
+        }
+
+        writer.write('"');
+    }
+
+    private static void writeCsvValue(Writer writer, String value) throws IOException
+    {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+                && value.indexOf('\r') < 0)
+        {
+            writer.write(value);
+            return;
+        }
+
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    /**
+     * Parse a flat JSON object (of strings, numbers and nulls) in a line.
+     */
+    private static class JsonParser
+    {
+        private final String mLine;
+        private final int mNumber;
+        private int mPosition;
+
+        JsonParser(String line, int number)
+        {
+            mLine = line;
+            mNumber = number;
+        }
+
+        /**
+         * Put the fields of the object in "fields" (numbers as text).
+         */
+        void parseObject(Map<String, String> fields) throws IOException
+        {
+            expect('{');
+
+            if (peek() == '}')
+            {
+                mPosition++;
+                return;
+            }
+
+            do
+            {
+                String key = parseString();
+                expect(':');
+                fields.put(key, parseValue());
+            }
+            while (next() == ',');
+
+            mPosition--;
+            expect('}');
+        }
+
+        private String parseValue() throws IOException
+        {
+            char c = peek();
+
+            if (c == '"')
+            {
+                return parseString();
+            }
+
+            int start = mPosition;
+
+            while (mPosition < mLine.length() && ",}".indexOf(mLine.charAt(mPosition)) < 0)
+            {
+                mPosition++;
+            }
+
+            String value = mLine.substring(start, mPosition).trim();
+
+            return value.equals("null") ? null : value;
+        }
+
+        private String parseString() throws IOException
+        {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+
+            while (true)
+            {
+                if (mPosition >= mLine.length())
+                {
+                    throw error("unterminated string");
+                }
+
+                char c = mLine.charAt(mPosition++);
+
+                if (c == '"')
+                {
+                    return value.toString();
+                }
+
+                if (c != '\\')
+                {
+                    value.append(c);
+                    continue;
+                }
+
+                if (mPosition >= mLine.length())
+                {
+                    throw error("unterminated string");
+                }
+
+                c = mLine.charAt(mPosition++);
+
+                switch (c)
+                {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'u':
+                        if (mPosition + 4 > mLine.length())
+                        {
+                            throw error("invalid escape");
+                        }
+
+                        try
+                        {
+                            value.append((char) Integer.parseInt(
+                                    mLine.substring(mPosition, mPosition + 4), 16));
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            throw error("invalid escape");
+                        }
+
+                        mPosition += 4;
+                        break;
+                    default:
+                        // '"', '\\' and '/'.
+                        value.append(c);
+                        break;
+                }
+            }
+        }
+
+        private void expect(char expected) throws IOException
+        {
+            if (next() != expected)
+            {
+                throw error("'" + expected + "' expected");
+            }
+        }
+
+        /**
+         * Return the next character which is not a space, and pass it.
+         */
+        private char next() throws IOException
+        {
+            char c = peek();
+            mPosition++;
+
+            return c;
+        }
+
+        private char peek() throws IOException
+        {
+            while (mPosition < mLine.length() && Character.isWhitespace(mLine.charAt(mPosition)))
+            {
+                mPosition++;
+            }
+
+            if (mPosition >= mLine.length())
+            {
+                throw error("unexpected end of line");
+            }
+
+            return mLine.charAt(mPosition);
+        }
+
+        private IOException error(String reason)
+        {
+            return new IOException("line " + mNumber + ", column " + (mPosition + 1)
+                    + ": " + reason);
+        }
+    }
+
+    /**
+     * Parse the CSV records one at a time (a value may span several lines).
+     */
+    private static class CsvParser
+    {
+        private final Reader mReader;
+        private int mNext;
+
+        CsvParser(Reader reader) throws IOException
+        {
+            mReader = reader.markSupported() ? reader : new BufferedReader(reader);
+            mNext = mReader.read();
+        }
+
+        /**
+         * Return the values of the next record, or null at the end.
+         */
+        String[] next() throws IOException
+        {
+            if (mNext < 0)
+            {
+                return null;
+            }
+
+            List<String> values = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            boolean isQuoted = false;
+
+            while (true)
+            {
+                int c = mNext;
+                mNext = mReader.read();
+
+                if (isQuoted)
+                {
+                    if (c < 0)
+                    {
+                        throw new IOException("unterminated quoted value");
+                    }
+
+                    if (c == '"' && mNext == '"')
+                    {
+                        // Escaped quote.
+                        value.append('"');
+                        mNext = mReader.read();
+                    }
+                    else if (c == '"')
+                    {
+                        isQuoted = false;
+                    }
+                    else
+                    {
+                        value.append((char) c);
+                    }
+                }
+                else if (c == '"')
+                {
+                    isQuoted = true;
+                }
+                else if (c == ',')
+                {
+                    values.add(value.toString());
+                    value.setLength(0);
+                }
+                else if (c == '\r' && mNext == '\n')
+                {
+                    // Ended by the '\n'.
+                }
+                else if (c == '\n' || c < 0)
+                {
+                    values.add(value.toString());
+
+                    return values.toArray(new String[0]);
+                }
+                else
+                {
+                    value.append((char) c);
+                }
+            }
+        }
+    }
+}
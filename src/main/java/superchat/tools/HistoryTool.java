@@ -0,0 +1,312 @@
+package superchat.tools;
+
+import superchat.data.Message;
+import superchat.server.HistoryLog;
+import superchat.server.Snapshotter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Export the history saved by the server (its snapshot and log) to
+ * newline-delimited JSON or CSV, import such a file in it, or migrate the
+ * legacy history file in it, one message at a time (so with a bounded
+ * memory, except for the legacy file, which is a single serialized list).
+ * The import and migration append the messages to the log (replayed by the
+ * server on launch): the server must be stopped meanwhile.
+ * Usage:
+ *   HistoryTool export ndjson|csv [--from <time>] [--to <time>] [--user <name>] [--out <file>]
+ *   HistoryTool import ndjson|csv <file>
+ *   HistoryTool migrate [<legacy file>]
+ * with "--home <directory>" to use another server home directory, and the
+ * times in ms since epoch, or ISO-8601 (e.g. 2021-03-01T00:00:00Z).
+ */
+public class HistoryTool
+{
+    private final static String USAGE = "Usage:\n"
+            + "  HistoryTool export ndjson|csv [--from <time>] [--to <time>] [--user <name>]"
+            + " [--out <file>] [--home <directory>]\n"
+            + "  HistoryTool import ndjson|csv <file> [--home <directory>]\n"
+            + "  HistoryTool migrate [<legacy file>] [--home <directory>]";
+
+    // The server home directory (snapshot and log).
+    private final Path mHome;
+    // Filters of the export (reception time in ms, and sender or recipient).
+    private long mFrom = Long.MIN_VALUE;
+    private long mTo = Long.MAX_VALUE;
+    private String mUser;
+
+    public static void main(String[] args)
+    {
+        // Options, then the other arguments.
+        Map<String, String> options = new HashMap<>();
+        ArrayList<String> arguments = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].startsWith("--") && i + 1 < args.length)
+            {
+                options.put(args[i].substring(2), args[++i]);
+            }
+            else
+            {
+                arguments.add(args[i]);
+            }
+        }
+
+        if (arguments.isEmpty())
+        {
+            exit(USAGE);
+        }
+
+        HistoryTool tool = new HistoryTool(Paths.get(options.getOrDefault("home",
+                System.getProperty("user.home") + File.separator + ".superchat")));
+
+        try
+        {
+            switch (arguments.get(0))
+            {
+                case "export":
+                    tool.mFrom = parseTime(options.get("from"), Long.MIN_VALUE);
+                    tool.mTo = parseTime(options.get("to"), Long.MAX_VALUE);
+                    tool.mUser = options.get("user");
+                    tool.export(parseFormat(arguments), options.get("out"));
+                    break;
+                case "import":
+                    if (arguments.size() < 3)
+                    {
+                        exit(USAGE);
+                    }
+
+                    tool.importFile(parseFormat(arguments), Paths.get(arguments.get(2)));
+                    break;
+                case "migrate":
+                    tool.migrate(arguments.size() > 1 ? Paths.get(arguments.get(1))
+                            : tool.mHome.resolve("history2"));
+                    break;
+                default:
+                    exit(USAGE);
+            }
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            exit("Error: " + e.getMessage());
+        }
+    }
+
+    private HistoryTool(Path home)
+    {
+        mHome = home;
+    }
+
+    /**
+     * Write the saved messages matching the filters in "format", to the
+     * file "out" (or the standard output if null).
+     */
+    private void export(HistoryFormat format, String out) throws IOException
+    {
+        long[] count = { 0 };
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out != null ?
+                new FileOutputStream(out) : new FileOutputStream(FileDescriptor.out),
+                StandardCharsets.UTF_8)))
+        {
+            format.writeHeader(writer);
+            Snapshotter.readSaved(mHome, new HistoryLog.RecordHandler()
+                    {
+                        @Override
+                        public void onMessage(Message message, long time)
+                        {
+                            if (! matches(message, time))
+                            {
+                                return;
+                            }
+
+                            try
+                            {
+                                format.write(writer, message, time);
+                                count[0]++;
+                            }
+                            catch (IOException e)
+                            {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+
+                        @Override
+                        public void onPresence(String name, boolean isConnecting)
+                        {
+                        }
+                    }
+            );
+        }
+
+        System.err.println(count[0] + " messages exported.");
+    }
+
+    private boolean matches(Message message, long time)
+    {
+        return time >= mFrom && time <= mTo && (mUser == null
+                || mUser.equals(message.getName()) || mUser.equals(message.getTo()));
+    }
+
+    /**
+     * Append the messages of "file" (in "format") to the saved history.
+     */
+    private void importFile(HistoryFormat format, Path file) throws IOException
+    {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            append(handler -> format.read(reader, handler));
+        }
+    }
+
+    /**
+     * Append the messages of the legacy history "file" (a serialized list)
+     * to the saved history.
+     */
+    private void migrate(Path file) throws IOException
+    {
+        try (ObjectInputStream stream = new ObjectInputStream(
+                new BufferedInputStream(Files.newInputStream(file))))
+        {
+            @SuppressWarnings("unchecked")
+            ArrayList<Message> messages = (ArrayList<Message>) stream.readObject();
+            // The reception time is unknown: the retention starts from now.
+            long time = System.currentTimeMillis();
+
+            append(handler ->
+                    {
+                        for (Message message : messages)
+                        {
+                            handler.onMessage(message, time);
+                        }
+                    }
+            );
+            System.err.println("The legacy file " + file + " can now be removed.");
+        }
+        catch (ClassNotFoundException | ClassCastException e)
+        {
+            throw new IOException("not a legacy history file", e);
+        }
+    }
+
+    /**
+     * Append the messages given by "source" to the log of the saved history,
+     * after its last record.
+     */
+    private void append(Source source) throws IOException
+    {
+        long lastSeq = Snapshotter.readSaved(mHome, new HistoryLog.RecordHandler()
+                {
+                    @Override
+                    public void onMessage(Message message, long time)
+                    {
+                    }
+
+                    @Override
+                    public void onPresence(String name, boolean isConnecting)
+                    {
+                    }
+                }
+        );
+
+        HistoryLog log = new HistoryLog(mHome.resolve("log"), lastSeq + 1);
+        long first = log.getNextSeq();
+
+        try
+        {
+            source.read(new HistoryLog.RecordHandler()
+                    {
+                        @Override
+                        public void onMessage(Message message, long time)
+                        {
+                            try
+                            {
+                                log.appendMessage(message.withSeq(log.getNextSeq()), time);
+                            }
+                            catch (IOException e)
+                            {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+
+                        @Override
+                        public void onPresence(String name, boolean isConnecting)
+                        {
+                        }
+                    }
+            );
+        }
+        finally
+        {
+            // Durable, even the ones before an error.
+            log.close();
+        }
+
+        System.err.println((log.getNextSeq() - first) + " messages imported (records "
+                + first + " to " + (log.getNextSeq() - 1) + ").");
+    }
+
+    private static HistoryFormat parseFormat(ArrayList<String> arguments)
+    {
+        try
+        {
+            return HistoryFormat.valueOf(arguments.get(1).toUpperCase(Locale.ROOT));
+        }
+        catch (IndexOutOfBoundsException | IllegalArgumentException e)
+        {
+            exit(USAGE);
+            return null;
+        }
+    }
+
+    private static long parseTime(String time, long otherwise)
+    {
+        if (time == null)
+        {
+            return otherwise;
+        }
+
+        try
+        {
+            return Long.parseLong(time);
+        }
+        catch (NumberFormatException e)
+        {
+            try
+            {
+                return Instant.parse(time).toEpochMilli();
+            }
+            catch (DateTimeParseException e2)
+            {
+                exit("Error: invalid time " + time + " (ms since epoch, or ISO-8601).");
+                return otherwise;
+            }
+        }
+    }
+
+    private static void exit(String message)
+    {
+        System.err.println(message);
+        System.exit(-1);
+    }
+
+    /**
+     * Give messages to a handler.
+     */
+    private interface Source
+    {
+        void read(HistoryLog.RecordHandler handler) throws IOException;
+    }
+}
@@ -0,0 +1,135 @@
+package superchat.tools;
+
+import com.rabbitmq.client.*;
+import org.apache.commons.lang3.SerializationUtils;
+import superchat.data.Message;
+import superchat.server.QueueConfig;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Compare the throughput of the server ingest path (clients publishing
+ * messages with confirms, consumed with manual acks) with the transient
+ * queues, and the durable ones (classic, lazy and quorum).
+ * Usage: IngestBenchmark [host] [messages].
+ */
+public class IngestBenchmark
+{
+    // Messages published between two waits for the confirms.
+    private final static int CONFIRM_BATCH = 100;
+    // Maximum time to consume the messages of a run (in seconds).
+    private final static int RUN_TIMEOUT = 120;
+
+    public static void main(String[] args)
+    {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(host);
+
+        List<QueueConfig> configs = List.of(
+                new QueueConfig(false, QueueConfig.TYPE_CLASSIC),
+                new QueueConfig(true, QueueConfig.TYPE_CLASSIC),
+                new QueueConfig(true, QueueConfig.TYPE_LAZY),
+                new QueueConfig(true, QueueConfig.TYPE_QUORUM));
+
+        try (Connection connection = factory.newConnection())
+        {
+            for (QueueConfig config : configs)
+            {
+                try
+                {
+                    double rate = run(connection, config, count);
+                    System.out.printf("%-20s %10.0f messages/s%n", config, rate);
+                }
+                catch (IOException e)
+                {
+                    // e.g. quorum queues on an old broker.
+                    System.out.printf("%-20s unavailable (%s)%n", config, e);
+                }
+            }
+        }
+        catch (IOException | TimeoutException | InterruptedException e)
+        {
+            System.err.println("Error: " + e);
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Publish and consume "count" messages through a queue declared as
+     * "config", and return the number of messages per second.
+     */
+    private static double run(Connection connection, QueueConfig config, int count)
+            throws IOException, TimeoutException, InterruptedException
+    {
+        String queue = "superchat-benchmark-" + UUID.randomUUID();
+        Channel publisher = connection.createChannel();
+        Channel consumer = connection.createChannel();
+
+        try
+        {
+            publisher.queueDeclare(queue, config.isDurable(), false, false,
+                    config.getArguments());
+            publisher.confirmSelect();
+            consumer.basicQos(256);
+
+            byte[] body = SerializationUtils.serialize(new Message("benchmark",
+                    "A message of a realistic size for a chat conversation.",
+                    "00:00:00", UUID.randomUUID().toString()));
+            AMQP.BasicProperties props = config.isDurable() ?
+                    MessageProperties.PERSISTENT_BASIC : MessageProperties.BASIC;
+            CountDownLatch consumed = new CountDownLatch(count);
+
+            long start = System.nanoTime();
+            // Acknowledged one by one, as the server does once in the history.
+            consumer.basicConsume(queue, false,
+                    (consumerTag, delivery) ->
+                    {
+                        consumer.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                        consumed.countDown();
+                    },
+                    consumerTag -> { }
+            );
+
+            for (int i = 1; i <= count; i++)
+            {
+                publisher.basicPublish("", queue, props, body);
+
+                if (i % CONFIRM_BATCH == 0 || i == count)
+                {
+                    publisher.waitForConfirmsOrDie(TimeUnit.SECONDS.toMillis(RUN_TIMEOUT));
+                }
+            }
+
+            if (! consumed.await(RUN_TIMEOUT, TimeUnit.SECONDS))
+            {
+                throw new TimeoutException("messages not consumed in time");
+            }
+
+            long elapsed = Math.max(System.nanoTime() - start, 1);
+
+            return count * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+        finally
+        {
+            if (consumer.isOpen())
+            {
+                consumer.close();
+            }
+
+            if (publisher.isOpen())
+            {
+                publisher.queueDelete(queue);
+                publisher.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package superchat.tools;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Turn the JFR recordings of the server and clients (e.g. run with
+ * "-XX:StartFlightRecording:filename=server.jfr") into latency percentiles
+ * per stage of the messages, matched by their trace id (the message id).
+ * The stages between two processes compare their clocks: they are only
+ * meaningful on the same host, or with synchronized clocks.
+ * Usage: LatencyAnalyzer recording.jfr...
+ */
+public class LatencyAnalyzer
+{
+    private final static String STAGE_PUBLISH = "publish (until confirmed)";
+    private final static String STAGE_TO_SERVER = "client > server";
+    private final static String STAGE_SERVER = "server handling";
+    private final static String STAGE_APPEND = "history append";
+    private final static String STAGE_TO_CLIENT = "server > client";
+    private final static String STAGE_SWING_QUEUE = "waiting for Swing";
+    private final static String STAGE_RENDER = "rendering";
+    private final static String STAGE_END_TO_END = "end to end (sent > rendered)";
+
+    // Latencies by stage (in their order along the way).
+    private final Map<String, List<Duration>> mStages = new LinkedHashMap<>();
+    // Events by trace id, and by recording then trace id for the ones
+    // recorded by each client.
+    private final Map<String, RecordedEvent> mPublishes = new HashMap<>();
+    private final Map<String, RecordedEvent> mServerReceives = new HashMap<>();
+    private final Map<String, RecordedEvent> mClientReceives = new HashMap<>();
+    private final Map<String, RecordedEvent> mRenders = new HashMap<>();
+
+    public static void main(String[] args)
+    {
+        if (args.length == 0)
+        {
+            System.err.println("Usage: LatencyAnalyzer recording.jfr...");
+            System.exit(-1);
+        }
+
+        LatencyAnalyzer analyzer = new LatencyAnalyzer();
+
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                analyzer.read(i, Paths.get(args[i]));
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error: " + e);
+            System.exit(-1);
+        }
+
+        analyzer.match();
+        analyzer.print();
+    }
+
+    private LatencyAnalyzer()
+    {
+        for (String stage : List.of(STAGE_PUBLISH, STAGE_TO_SERVER, STAGE_SERVER,
+                STAGE_APPEND, STAGE_TO_CLIENT, STAGE_SWING_QUEUE, STAGE_RENDER,
+                STAGE_END_TO_END))
+        {
+            mStages.put(stage, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Read the events of the recording "file" (the "index"-th one).
+     */
+    private void read(int index, Path file) throws IOException
+    {
+        for (RecordedEvent event : RecordingFile.readAllEvents(file))
+        {
+            String type = event.getEventType().getName();
+
+            if (! type.startsWith("superchat.") || ! event.hasField("traceId")
+                    || event.getString("traceId") == null)
+            {
+                continue;
+            }
+
+            String traceId = event.getString("traceId");
+
+            switch (type)
+            {
+                case "superchat.Publish":
+                    mStages.get(STAGE_PUBLISH).add(event.getDuration());
+                    mPublishes.put(traceId, event);
+                    break;
+                case "superchat.ServerReceive":
+                    mStages.get(STAGE_SERVER).add(event.getDuration());
+                    mServerReceives.put(traceId, event);
+                    break;
+                case "superchat.HistoryAppend":
+                    mStages.get(STAGE_APPEND).add(event.getDuration());
+                    break;
+                case "superchat.ClientReceive":
+                    mClientReceives.put(index + "/" + traceId, event);
+                    break;
+                case "superchat.Rendered":
+                    mStages.get(STAGE_RENDER).add(event.getDuration());
+                    mRenders.put(index + "/" + traceId, event);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Compute the latencies between the stages of the same messages.
+     */
+    private void match()
+    {
+        mServerReceives.forEach((traceId, receive) ->
+                {
+                    RecordedEvent publish = mPublishes.get(traceId);
+
+                    if (publish != null)
+                    {
+                        mStages.get(STAGE_TO_SERVER).add(
+                                Duration.between(publish.getStartTime(), receive.getStartTime()));
+                    }
+                }
+        );
+
+        mClientReceives.forEach((key, receive) ->
+                {
+                    String traceId = key.substring(key.indexOf('/') + 1);
+                    RecordedEvent serverReceive = mServerReceives.get(traceId);
+                    RecordedEvent publish = mPublishes.get(traceId);
+                    RecordedEvent render = mRenders.get(key);
+
+                    if (serverReceive != null)
+                    {
+                        mStages.get(STAGE_TO_CLIENT).add(
+                                Duration.between(serverReceive.getEndTime(), receive.getStartTime()));
+                    }
+
+                    if (render != null)
+                    {
+                        mStages.get(STAGE_SWING_QUEUE).add(
+                                Duration.between(receive.getStartTime(), render.getStartTime()));
+                    }
+
+                    if (render != null && publish != null)
+                    {
+                        mStages.get(STAGE_END_TO_END).add(
+                                Duration.between(publish.getStartTime(), render.getEndTime()));
+                    }
+                }
+        );
+    }
+
+    private void print()
+    {
+        System.out.printf("%-30s %8s %10s %10s %10s %10s%n",
+                "stage", "count", "p50 (ms)", "p90 (ms)", "p99 (ms)", "max (ms)");
+
+        mStages.forEach((stage, latencies) ->
+                {
+                    if (latencies.isEmpty())
+                    {
+                        System.out.printf("%-30s %8d%n", stage, 0);
+                        return;
+                    }
+
+                    Collections.sort(latencies);
+                    System.out.printf("%-30s %8d %10.2f %10.2f %10.2f %10.2f%n",
+                            stage, latencies.size(),
+                            percentile(latencies, 0.50), percentile(latencies, 0.90),
+                            percentile(latencies, 0.99),
+                            toMillis(latencies.get(latencies.size() - 1)));
+                }
+        );
+    }
+
+    /**
+     * Return the "p" percentile of the sorted "latencies" (in ms).
+     */
+    private static double percentile(List<Duration> latencies, double p)
+    {
+        int index = (int) Math.ceil(p * latencies.size()) - 1;
+
+        return toMillis(latencies.get(Math.max(index, 0)));
+    }
+
+    private static double toMillis(Duration duration)
+    {
+        return duration.toNanos() / 1e6;
+    }
+}
@@ -0,0 +1,26 @@
+package superchat.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * A message received by a client (before being given to its listener).
+ */
+@Name("superchat.ClientReceive")
+@Label("Message Client Receive")
+@Category({"SuperChat", "Messages"})
+@Description("Reception of a message spread by the server")
+@StackTrace(false)
+public class ClientReceiveEvent extends Event
+{
+    @Label("Trace Id")
+    public String traceId;
+
+    @Label("History Position")
+    public long seq;
+}
@@ -0,0 +1,26 @@
+package superchat.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * A message added to the server history (and its log).
+ */
+@Name("superchat.HistoryAppend")
+@Label("Message History Append")
+@Category({"SuperChat", "Messages"})
+@Description("Append of a message to the history and its log")
+@StackTrace(false)
+public class HistoryAppendEvent extends Event
+{
+    @Label("Trace Id")
+    public String traceId;
+
+    @Label("History Position")
+    public long seq;
+}
@@ -0,0 +1,55 @@
+package superchat.trace;
+
+import com.rabbitmq.client.AMQP;
+
+import java.util.Map;
+
+
+/**
+ * The trace of a message along its way (client, broker, server, clients):
+ * its trace id (the message id) and send time are carried in the AMQP
+ * headers, and each stage records a JFR event with the trace id (see
+ * "superchat.tools.LatencyAnalyzer").
+ */
+public final class MessageTrace
+{
+    public final static String HEADER_TRACE_ID = "superchat-trace-id";
+    // Send time (ms since epoch).
+    public final static String HEADER_SENT_AT = "superchat-sent-at";
+
+    private MessageTrace()
+    {
+    }
+
+    /**
+     * Return the headers of a message of trace id "traceId" sent now.
+     */
+    public static Map<String, Object> headers(String traceId)
+    {
+        return Map.of(HEADER_TRACE_ID, traceId,
+                HEADER_SENT_AT, System.currentTimeMillis());
+    }
+
+    /**
+     * Return the trace id of the message of properties "props", or null.
+     */
+    public static String traceIdOf(AMQP.BasicProperties props)
+    {
+        Object traceId = props.getHeaders() != null ?
+                props.getHeaders().get(HEADER_TRACE_ID) : null;
+        // Received as a "LongString".
+        return traceId != null ? traceId.toString() : null;
+    }
+
+    /**
+     * Return the send time of the message of properties "props" (ms since
+     * epoch), or -1 if unknown.
+     */
+    public static long sentAtOf(AMQP.BasicProperties props)
+    {
+        Object sentAt = props.getHeaders() != null ?
+                props.getHeaders().get(HEADER_SENT_AT) : null;
+
+        return sentAt instanceof Number ? ((Number) sentAt).longValue() : -1;
+    }
+}
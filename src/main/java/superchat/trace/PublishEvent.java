@@ -0,0 +1,26 @@
+package superchat.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * A message sent by a client, until confirmed by the broker.
+ */
+@Name("superchat.Publish")
+@Label("Message Publish")
+@Category({"SuperChat", "Messages"})
+@Description("Serialization and publication of a message, until confirmed")
+@StackTrace(false)
+public class PublishEvent extends Event
+{
+    @Label("Trace Id")
+    public String traceId;
+
+    @Label("Attempts")
+    public int attempts;
+}
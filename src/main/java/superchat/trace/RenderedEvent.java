@@ -0,0 +1,23 @@
+package superchat.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * A message displayed in the chat (in the Swing thread).
+ */
+@Name("superchat.Rendered")
+@Label("Message Rendered")
+@Category({"SuperChat", "Messages"})
+@Description("Display of a message in the chat")
+@StackTrace(false)
+public class RenderedEvent extends Event
+{
+    @Label("Trace Id")
+    public String traceId;
+}
@@ -0,0 +1,33 @@
+package superchat.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+
+/**
+ * A message handled by the server, from its reception to its spreading
+ * (or rejection).
+ */
+@Name("superchat.ServerReceive")
+@Label("Message Server Receive")
+@Category({"SuperChat", "Messages"})
+@Description("Handling of a message by the server, history append included")
+@StackTrace(false)
+public class ServerReceiveEvent extends Event
+{
+    @Label("Trace Id")
+    public String traceId;
+
+    @Label("Transit")
+    @Description("Time since the message was sent (clocks of the client and server hosts)")
+    @Timespan(Timespan.MILLISECONDS)
+    public long transit;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -0,0 +1,113 @@
+package superchat.server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import superchat.data.Message;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class ChatStateTest
+{
+    @TempDir
+    Path mDirectory;
+
+    private ChatState mState;
+
+    @BeforeEach
+    void setUp() throws IOException
+    {
+        mState = new ChatState();
+        mState.setLog(new HistoryLog(mDirectory, 0));
+    }
+
+    private static Message messageOf(String content)
+    {
+        return new Message("alice", content, "10:00:00", content);
+    }
+
+    private static List<Long> seqsOf(List<Message> messages)
+    {
+        return messages.stream().map(Message::getSeq).collect(Collectors.toList());
+    }
+
+    @Test
+    void addMessageGivesTheNextPositions() throws IOException
+    {
+        assertTrue(mState.addUser("alice"));
+
+        Message first = mState.addMessage(messageOf("m1"));
+        Message second = mState.addMessage(messageOf("m2"));
+
+        // After the connection.
+        assertEquals(1, first.getSeq());
+        assertEquals(2, second.getSeq());
+        assertEquals(3, mState.nextSeq());
+        assertEquals(List.of(1L, 2L), seqsOf(mState.getHistory().toList()));
+    }
+
+    @Test
+    void applyFollowsTheSequence()
+    {
+        assertTrue(mState.apply(StateChange.presence(0, "alice", true, 0)));
+        assertTrue(mState.apply(StateChange.message(1, messageOf("m1").withSeq(1), 1)));
+
+        assertNotNull(mState.getUser("alice"));
+        assertEquals(1, mState.getHistory().size());
+        assertEquals(2, mState.nextSeq());
+    }
+
+    @Test
+    void applyIgnoresTheAlreadyApplied()
+    {
+        mState.apply(StateChange.message(0, messageOf("m1").withSeq(0), 0));
+
+        // Replayed again (e.g. after a snapshot).
+        assertTrue(mState.apply(StateChange.message(0, messageOf("m1").withSeq(0), 0)));
+
+        assertEquals(1, mState.getHistory().size());
+        assertEquals(1, mState.nextSeq());
+    }
+
+    @Test
+    void applyRejectsAGap()
+    {
+        mState.apply(StateChange.presence(0, "alice", true, 0));
+
+        assertFalse(mState.apply(StateChange.presence(2, "bob", true, 2)));
+
+        assertNull(mState.getUser("bob"));
+        assertEquals(1, mState.nextSeq());
+    }
+
+    @Test
+    void applyLogsTheDisconnections()
+    {
+        mState.apply(StateChange.presence(0, "alice", true, 0));
+        assertTrue(mState.apply(StateChange.presence(1, "alice", false, 1)));
+
+        assertNull(mState.getUser("alice"));
+        assertEquals(2, mState.nextSeq());
+    }
+
+    @Test
+    void directMessagesGoToTheirConversation()
+    {
+        Message direct = new Message("alice", "hi", "10:00:00", "d1", "bob").withSeq(0);
+
+        assertTrue(mState.apply(StateChange.message(0, direct, 0)));
+
+        assertEquals(0, mState.getHistory().size());
+        assertEquals(1, mState.getDirectHistory().last("bob", "alice", 10).size());
+    }
+}
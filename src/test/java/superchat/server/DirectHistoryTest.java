@@ -0,0 +1,64 @@
+package superchat.server;
+
+import org.junit.jupiter.api.Test;
+import superchat.data.Message;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+class DirectHistoryTest
+{
+    private static Message directOf(long seq, String from, String to)
+    {
+        return new Message(from, "message " + seq, "10:00:00", "id" + seq, to).withSeq(seq);
+    }
+
+    @Test
+    void conversationsIgnoreTheOrderOfTheUsers()
+    {
+        DirectHistory history = new DirectHistory();
+
+        history.append(directOf(1, "alice", "bob"), 1000);
+        history.append(directOf(2, "bob", "alice"), 2000);
+        history.append(directOf(3, "alice", "carol"), 3000);
+
+        assertEquals(2, history.size());
+        assertEquals(2, history.last("bob", "alice", 10).size());
+        assertEquals(1, history.last("alice", "carol", 10).size());
+    }
+
+    @Test
+    void lastMergesTheConversations()
+    {
+        DirectHistory history = new DirectHistory();
+
+        history.append(directOf(1, "alice", "bob"), 1000);
+        history.append(directOf(2, "alice", "carol"), 2000);
+        history.append(directOf(3, "bob", "alice"), 3000);
+
+        List<Message> last = history.last(2);
+
+        assertEquals(2, last.size());
+        assertEquals(2, last.get(0).getSeq());
+        assertEquals(3, last.get(1).getSeq());
+    }
+
+    @Test
+    void compactDropsTheEmptiedConversations()
+    {
+        DirectHistory history = new DirectHistory();
+
+        history.append(directOf(1, "alice", "bob"), 1000);
+        history.append(directOf(2, "alice", "carol"), 9000);
+
+        HistoryStore.CompactionResult result = history.compact(
+                new RetentionPolicy(5000, 0, 0), 10000);
+
+        assertEquals(1, result.getMessages());
+        assertEquals(1, history.size());
+        assertEquals(0, history.last("alice", "bob", 10).size());
+        assertEquals(1, history.last("alice", "carol", 10).size());
+    }
+}
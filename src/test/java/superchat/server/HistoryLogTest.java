@@ -0,0 +1,156 @@
+package superchat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import superchat.data.Message;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+class HistoryLogTest
+{
+    @TempDir
+    Path mDirectory;
+
+    /**
+     * Keep the replayed records, as "content@time" for a message, or
+     * "+name"/"-name" for a presence.
+     */
+    private static class Records implements HistoryLog.RecordHandler
+    {
+        final List<String> mRecords = new ArrayList<>();
+
+        @Override
+        public void onMessage(Message message, long time)
+        {
+            mRecords.add(message.getContent() + "@" + time);
+        }
+
+        @Override
+        public void onPresence(String name, boolean isConnecting)
+        {
+            mRecords.add((isConnecting ? "+" : "-") + name);
+        }
+    }
+
+    private static Message messageOf(long seq, String content)
+    {
+        return new Message("alice", content, "10:00:00", "id" + seq).withSeq(seq);
+    }
+
+    private HistoryLog logOf(int messages) throws IOException
+    {
+        HistoryLog log = new HistoryLog(mDirectory, 0);
+        log.appendPresence("alice", true, 0);
+
+        for (int i = 1; i <= messages; i++)
+        {
+            log.appendMessage(messageOf(i, "m" + i), i);
+        }
+
+        log.appendPresence("alice", false, messages + 1);
+
+        return log;
+    }
+
+    @Test
+    void replaysAllTheRecords() throws IOException
+    {
+        HistoryLog log = logOf(2);
+        log.close();
+        Records records = new Records();
+
+        long lastSeq = HistoryLog.replay(mDirectory, -1, records);
+
+        assertEquals(3, lastSeq);
+        assertEquals(List.of("+alice", "m1@1", "m2@2", "-alice"), records.mRecords);
+    }
+
+    @Test
+    void replaysOnlyAfterTheSeq() throws IOException
+    {
+        HistoryLog log = logOf(2);
+        log.close();
+        Records records = new Records();
+
+        HistoryLog.replay(mDirectory, 1, records);
+
+        assertEquals(List.of("m2@2", "-alice"), records.mRecords);
+    }
+
+    @Test
+    void stopsAtATornTail() throws IOException
+    {
+        HistoryLog log = logOf(3);
+        log.close();
+        Path file = onlyFile();
+        long size = Files.size(file);
+        // Cut the last record (a disconnection: 8 + 1 + 8 + 2 + 5 bytes) and
+        // a part of the previous one, as a crash during the writes would.
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw"))
+        {
+            raf.setLength(size - 24 - 10);
+        }
+        Records records = new Records();
+
+        long lastSeq = HistoryLog.replay(mDirectory, -1, records);
+
+        assertEquals(2, lastSeq);
+        assertEquals(List.of("+alice", "m1@1", "m2@2"), records.mRecords);
+    }
+
+    @Test
+    void continuesInTheNextFiles() throws IOException
+    {
+        HistoryLog log = logOf(1);
+        assertEquals(2, log.rotate());
+        log.appendMessage(messageOf(3, "m3"), 3);
+        log.close();
+        Records records = new Records();
+
+        long lastSeq = HistoryLog.replay(mDirectory, -1, records);
+
+        assertEquals(3, lastSeq);
+        assertEquals(List.of("+alice", "m1@1", "-alice", "m3@3"), records.mRecords);
+    }
+
+    @Test
+    void deletesTheFilesCoveredBySeq() throws IOException
+    {
+        HistoryLog log = logOf(1);
+        long lastSeq = log.rotate();
+        log.appendMessage(messageOf(3, "m3"), 3);
+
+        log.deleteUpTo(lastSeq);
+        log.close();
+        Records records = new Records();
+
+        assertEquals(3, HistoryLog.replay(mDirectory, lastSeq, records));
+        assertEquals(List.of("m3@3"), records.mRecords);
+        assertEquals(1, fileCount());
+    }
+
+    private Path onlyFile() throws IOException
+    {
+        try (Stream<Path> files = Files.list(mDirectory))
+        {
+            return files.findFirst().orElseThrow();
+        }
+    }
+
+    private long fileCount() throws IOException
+    {
+        try (Stream<Path> files = Files.list(mDirectory))
+        {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package superchat.server;
+
+import org.junit.jupiter.api.Test;
+import superchat.data.Message;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class HistoryStoreTest
+{
+    // Small segments, so that the reads and compactions cross several.
+    private final static int SEGMENT_CAPACITY = 4;
+
+    /**
+     * Return a history of "count" messages (of the same size) at positions
+     * 2, 4, 6..., the message n being received at n s.
+     */
+    private static HistoryStore historyOf(int count)
+    {
+        HistoryStore history = new HistoryStore(SEGMENT_CAPACITY, new StringDictionary());
+
+        for (int i = 1; i <= count; i++)
+        {
+            history.append(new Message("alice", String.format("message %03d", i),
+                    "10:00:00", String.format("id%03d", i))
+                    .withSeq(2L * i), i * 1000L);
+        }
+
+        return history;
+    }
+
+    private static void assertSeqs(List<Message> messages, long... seqs)
+    {
+        assertEquals(seqs.length, messages.size());
+
+        for (int i = 0; i < seqs.length; i++)
+        {
+            assertEquals(seqs[i], messages.get(i).getSeq());
+        }
+    }
+
+    @Test
+    void lastReturnsTheMostRecentOldestFirst()
+    {
+        HistoryStore history = historyOf(10);
+
+        assertSeqs(history.last(3, 0), 16, 18, 20);
+        assertSeqs(history.last(3, 2), 12, 14, 16);
+        assertSeqs(history.last(3, 9), 2);
+        assertSeqs(history.last(20, 0), 2, 4, 6, 8, 10, 12, 14, 16, 18, 20);
+    }
+
+    @Test
+    void afterStopsAtTheCount()
+    {
+        HistoryStore history = historyOf(10);
+
+        assertSeqs(history.after(0, 3), 2, 4, 6);
+        // Between two positions, and across a segment.
+        assertSeqs(history.after(7, 3), 8, 10, 12);
+        assertSeqs(history.after(16, 10), 18, 20);
+        assertSeqs(history.after(20, 10));
+        assertSeqs(history.after(4, 0));
+    }
+
+    @Test
+    void sinceReturnsAllTheNextOnes()
+    {
+        HistoryStore history = historyOf(10);
+
+        assertSeqs(history.since(13), 14, 16, 18, 20);
+        assertSeqs(history.since(20));
+        assertEquals(10, history.since(-1).size());
+    }
+
+    @Test
+    void compactDropsTheOldestOverTheCount()
+    {
+        HistoryStore history = historyOf(10);
+
+        HistoryStore.CompactionResult result = history.compact(
+                new RetentionPolicy(0, 4, 0), 10000);
+
+        assertEquals(6, result.getMessages());
+        assertEquals(4, history.size());
+        assertSeqs(history.toList(), 14, 16, 18, 20);
+        // The reads skip the dropped ones.
+        assertSeqs(history.after(0, 2), 14, 16);
+        assertSeqs(history.last(10, 0), 14, 16, 18, 20);
+    }
+
+    @Test
+    void compactDropsTheOlderThanTheMaxAge()
+    {
+        HistoryStore history = historyOf(10);
+
+        history.compact(new RetentionPolicy(5000, 0, 0), 10000);
+
+        // Received before 5 s.
+        assertSeqs(history.toList(), 10, 12, 14, 16, 18, 20);
+    }
+
+    @Test
+    void compactDropsTheOldestOverTheBytes()
+    {
+        HistoryStore history = historyOf(10);
+        long messageBytes = history.bytes() / history.size();
+
+        HistoryStore.CompactionResult result = history.compact(
+                new RetentionPolicy(0, 0, 3 * messageBytes), 10000);
+
+        assertSeqs(history.toList(), 16, 18, 20);
+        assertEquals(7 * messageBytes, result.getBytes());
+        assertEquals(3 * messageBytes, history.bytes());
+    }
+
+    @Test
+    void compactKeepsAppending()
+    {
+        HistoryStore history = historyOf(10);
+
+        history.compact(new RetentionPolicy(0, 1, 0), 10000);
+        // Within the trimmed tail segment.
+        history.append(new Message("bob", "later", "10:00:01", "id11").withSeq(22), 11000);
+
+        assertSeqs(history.toList(), 20, 22);
+        assertSeqs(history.since(20), 22);
+    }
+
+    @Test
+    void compactWithoutLimitsKeepsAll()
+    {
+        HistoryStore history = historyOf(10);
+
+        HistoryStore.CompactionResult result = history.compact(
+                new RetentionPolicy(0, 0, 0), 10000);
+
+        assertEquals(0, result.getMessages());
+        assertEquals(10, history.size());
+        assertTrue(history.bytes() > 0);
+    }
+}
@@ -0,0 +1,53 @@
+package superchat.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class IdempotencyCacheTest
+{
+    @Test
+    void remembersTheAddedIds()
+    {
+        IdempotencyCache cache = new IdempotencyCache(10);
+
+        cache.add("a");
+
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+    }
+
+    @Test
+    void forgetsTheOldestOverTheCapacity()
+    {
+        IdempotencyCache cache = new IdempotencyCache(3);
+
+        cache.add("a");
+        cache.add("b");
+        cache.add("c");
+        cache.add("d");
+
+        assertEquals(3, cache.getCapacity());
+        assertFalse(cache.contains("a"));
+        assertTrue(cache.contains("b"));
+        assertTrue(cache.contains("d"));
+    }
+
+    @Test
+    void checkingDoesNotKeepAnId()
+    {
+        IdempotencyCache cache = new IdempotencyCache(2);
+
+        cache.add("a");
+        cache.add("b");
+        // Insertion order: still the oldest.
+        cache.contains("a");
+        cache.add("c");
+
+        assertFalse(cache.contains("a"));
+        assertTrue(cache.contains("b"));
+    }
+}
@@ -0,0 +1,39 @@
+package superchat.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+class RetentionPolicyTest
+{
+    @Test
+    void keepsThePositiveLimits()
+    {
+        RetentionPolicy policy = new RetentionPolicy(60000, 100, 4096);
+
+        assertEquals(60000, policy.getMaxAgeMillis());
+        assertEquals(100, policy.getMaxCount());
+        assertEquals(4096, policy.getMaxBytes());
+    }
+
+    @Test
+    void noLimitWhenNotPositive()
+    {
+        RetentionPolicy policy = new RetentionPolicy(0, 0, -1);
+
+        assertEquals(0, policy.getMaxAgeMillis());
+        assertEquals(Integer.MAX_VALUE, policy.getMaxCount());
+        assertEquals(Long.MAX_VALUE, policy.getMaxBytes());
+    }
+
+    @Test
+    void noLimitByDefault()
+    {
+        RetentionPolicy policy = RetentionPolicy.fromSystemProperties();
+
+        assertEquals(0, policy.getMaxAgeMillis());
+        assertEquals(Integer.MAX_VALUE, policy.getMaxCount());
+        assertEquals(Long.MAX_VALUE, policy.getMaxBytes());
+    }
+}
@@ -0,0 +1,57 @@
+package superchat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class TokenBucketTest
+{
+    // 10 tokens per second: one every 100 ms.
+    private final static long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    void acceptsABurstThenRejects()
+    {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 5; i++)
+        {
+            assertTrue(bucket.tryAcquire(now));
+        }
+
+        assertFalse(bucket.tryAcquire(now));
+    }
+
+    @Test
+    void refillsAtTheRate()
+    {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        long now = System.nanoTime();
+
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now + INTERVAL / 2));
+        assertTrue(bucket.tryAcquire(now + INTERVAL));
+        assertFalse(bucket.tryAcquire(now + INTERVAL));
+    }
+
+    @Test
+    void refillsUpToTheBurstOnly()
+    {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        long now = System.nanoTime();
+        // Idle long enough to refill many tokens.
+        long later = now + 100 * INTERVAL;
+
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(bucket.tryAcquire(later));
+        }
+
+        assertFalse(bucket.tryAcquire(later));
+    }
+}
@@ -0,0 +1,109 @@
+package superchat.tools;
+
+import org.junit.jupiter.api.Test;
+import superchat.data.Attachment;
+import superchat.data.Message;
+import superchat.server.HistoryLog;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+class HistoryFormatTest
+{
+    private final static List<Message> MESSAGES = List.of(
+            new Message("alice", "Hello, \"bob\"!\nSecond line\tand a tab, \\ \u00e9 \u2713",
+                    "10:00:00", "id1").withSeq(1),
+            new Message("bob", "To alice only, with a ; and a ,", "10:00:01", "id2", "alice")
+                    .withSeq(2),
+            new Message("carol", "Shared the file \"a.txt\".", "10:00:02", null)
+                    .withSeq(3)
+                    .withAttachment(new Attachment("ab12", "a, \"b\".txt", 42)));
+
+    /**
+     * Keep the read messages and their reception times.
+     */
+    private static class Records implements HistoryLog.RecordHandler
+    {
+        final List<Message> mMessages = new ArrayList<>();
+        final List<Long> mTimes = new ArrayList<>();
+
+        @Override
+        public void onMessage(Message message, long time)
+        {
+            mMessages.add(message);
+            mTimes.add(time);
+        }
+
+        @Override
+        public void onPresence(String name, boolean isConnecting)
+        {
+        }
+    }
+
+    private static Records roundTrip(HistoryFormat format) throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        format.writeHeader(writer);
+
+        for (int i = 0; i < MESSAGES.size(); i++)
+        {
+            format.write(writer, MESSAGES.get(i), 1000L * (i + 1));
+        }
+
+        Records records = new Records();
+        format.read(new StringReader(writer.toString()), records);
+
+        return records;
+    }
+
+    private static void assertSameMessages(Records records)
+    {
+        assertEquals(List.of(1000L, 2000L, 3000L), records.mTimes);
+        assertEquals(MESSAGES.size(), records.mMessages.size());
+
+        for (int i = 0; i < MESSAGES.size(); i++)
+        {
+            Message expected = MESSAGES.get(i);
+            Message actual = records.mMessages.get(i);
+
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getContent(), actual.getContent());
+            assertEquals(expected.getTime(), actual.getTime());
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getTo(), actual.getTo());
+        }
+
+        Attachment attachment = records.mMessages.get(2).getAttachment();
+        assertEquals("ab12", attachment.getHash());
+        assertEquals("a, \"b\".txt", attachment.getFileName());
+        assertEquals(42, attachment.getSize());
+        assertNull(records.mMessages.get(0).getAttachment());
+    }
+
+    @Test
+    void ndjsonRoundTrip() throws IOException
+    {
+        assertSameMessages(roundTrip(HistoryFormat.NDJSON));
+    }
+
+    @Test
+    void csvRoundTrip() throws IOException
+    {
+        assertSameMessages(roundTrip(HistoryFormat.CSV));
+    }
+
+    @Test
+    void rejectsARecordWithoutContent()
+    {
+        assertThrows(IOException.class, () -> HistoryFormat.NDJSON.read(
+                new StringReader("{\"name\":\"alice\"}\n"), new Records()));
+    }
+}